@@ -0,0 +1,87 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.ActionNode;
+import com.sdcardstoryteller.model.StageNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Action nodes of a pack, built from the 'li' table on demand: one per offset and options count,
+ * shared by every transition referencing them. Only the list bounds are checked when a transition
+ * is read, 'li' entries are checked against the stage nodes count when their action node is built,
+ * so that navigation never meets a missing stage node.
+ */
+class ActionNodeTable {
+
+    private final int[] listIndex;
+    private final StageNode[] stageNodes;
+    private final ActionNode[] actionNodes;
+    private Map<Long, ActionNode> otherCounts = null;   // Offsets referenced with several options counts (rare)
+    private ActionNode noOptions = null;
+
+    ActionNodeTable(int[] listIndex, StageNode[] stageNodes) {
+        this.listIndex = listIndex;
+        this.stageNodes = stageNodes;
+        this.actionNodes = new ActionNode[listIndex.length];
+    }
+
+    void checkBounds(int offset, int count) throws IOException {
+        if (offset < 0 || count < 0 || offset + count > listIndex.length) {
+            throw new IOException("Action node out of list index bounds: offset " + offset + ", " + count + " options");
+        }
+    }
+
+    int getTargetIndex(int offset, int count, int option) {
+        if (option < 0 || option >= count) {
+            return -1;
+        }
+        return listIndex[offset + option];
+    }
+
+    synchronized ActionNode get(int offset, int count) throws IOException {
+        if (count == 0) {
+            if (noOptions == null) {
+                noOptions = new ActionNode(new ArrayList<>());
+            }
+            return noOptions;
+        }
+        ActionNode actionNode = actionNodes[offset];
+        if (actionNode == null) {
+            actionNode = build(offset, count);
+            actionNodes[offset] = actionNode;
+        } else if (actionNode.getOptions().size() != count) {
+            if (otherCounts == null) {
+                otherCounts = new HashMap<>();
+            }
+            long key = ((long) offset << 32) | count;
+            actionNode = otherCounts.get(key);
+            if (actionNode == null) {
+                actionNode = build(offset, count);
+                otherCounts.put(key, actionNode);
+            }
+        }
+        return actionNode;
+    }
+
+    private ActionNode build(int offset, int count) throws IOException {
+        List<StageNode> options = new ArrayList<>(count);
+        for (int i=0; i<count; i++) {
+            int target = listIndex[offset + i];
+            if (target < 0 || target >= stageNodes.length) {
+                throw new IOException("Action node option out of stage nodes bounds: offset " + offset + ", option " + i + " targets node " + target);
+            }
+            options.add(stageNodes[target]);
+        }
+        return new ActionNode(options);
+    }
+}
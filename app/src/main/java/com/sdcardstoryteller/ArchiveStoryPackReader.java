@@ -0,0 +1,480 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.AudioAsset;
+import com.sdcardstoryteller.model.CompactStoryPack;
+import com.sdcardstoryteller.model.ImageAsset;
+import com.sdcardstoryteller.model.StoryPack;
+import com.sdcardstoryteller.model.metadata.StoryPackMetadata;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a pack in the fs format ('ni', 'li', 'ri', 'si', 'rf/' and 'sf/') from a zip archive,
+ * without extracting it. The archive is opened once and only its central directory is parsed, so
+ * opening a pack depends on the number of entries, not on the archive size. Index files are read
+ * (and inflated if needed) straight from the archive, assets point to their entry's data.
+ * The pack folder is either the archive root or its single top-level folder.
+ *
+ * Stored entries are read with positional reads: images are LazyImageAssets and audio is served
+ * by CipheredAssetReader like any other file region. Deflated entries aren't seekable: images are
+ * inflated on first access, audio each time it is played (a plain 'zip -r' of a pack compresses
+ * everything, stored audio avoids this). Entries' data offsets (past their local header) are
+ * resolved on first read of each entry, so that opening the archive only reads its central
+ * directory.
+ * Zip64 and encrypted archives are not supported.
+ */
+public class ArchiveStoryPackReader implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final String NODE_INDEX_FILENAME = "ni";
+    private static final String LIST_INDEX_FILENAME = "li";
+    private static final String IMAGE_INDEX_FILENAME = "ri";
+    private static final String IMAGE_FOLDER = "rf/";
+    private static final String SOUND_INDEX_FILENAME = "si";
+    private static final String SOUND_FOLDER = "sf/";
+    private static final String NIGHT_MODE_FILENAME = "nm";
+    private static final String CLEARTEXT_FILENAME = ".cleartext";
+
+    public static class Entry {
+
+        private final String name;
+        private final int flags;
+        private final int method;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+        private long dataOffset = -1;       // Resolved on first read
+
+        Entry(String name, int flags, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public boolean isStored() {
+            return method == METHOD_STORED;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private final Path archive;
+    private final FileChannel channel;
+    private final FsStoryPackReader reader;
+    private final Map<String, Entry> entries;
+    private final String packFolder;
+
+    private ArchiveStoryPackReader(Path archive, FileChannel channel, FsStoryPackReader reader, Map<String, Entry> entries, String packFolder) {
+        this.archive = archive;
+        this.channel = channel;
+        this.reader = reader;
+        this.entries = entries;
+        this.packFolder = packFolder;
+    }
+
+    public static ArchiveStoryPackReader open(Path archive) throws IOException {
+        return open(archive, new FsStoryPackReader(true));
+    }
+
+    public static ArchiveStoryPackReader open(Path archive, FsStoryPackReader reader) throws IOException {
+        // Reader gives the graph options (lazy images and transitions)
+        FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ);
+        try (Tracer.Span span = Tracer.begin("readCentralDirectory", archive)) {
+            span.addFiles(1);
+            Map<String, Entry> entries = readCentralDirectory(channel, span);
+            String packFolder = findPackFolder(entries);
+            if (packFolder == null) {
+                throw new IOException("No node index in archive " + archive);
+            }
+            return new ArchiveStoryPackReader(archive, channel, reader, entries, packFolder);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static Map<String, Entry> readCentralDirectory(FileChannel channel, Tracer.Span span) throws IOException {
+        // End of central directory record is in the last bytes, before an optional comment
+        long archiveSize = channel.size();
+        if (archiveSize < END_OF_CENTRAL_DIRECTORY_SIZE) {
+            throw new IOException("Not a zip archive: too small");
+        }
+        ByteBuffer tail = readTail(channel, archiveSize, END_OF_CENTRAL_DIRECTORY_SIZE, span);
+        int end = 0;
+        if (tail.getInt(0) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+            // Archive has a comment: search the record backwards in the largest possible tail
+            tail = readTail(channel, archiveSize, (int) Math.min(archiveSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE), span);
+            end = -1;
+            for (int i=tail.capacity() - END_OF_CENTRAL_DIRECTORY_SIZE; i>=0; i--) {
+                if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                    end = i;
+                    break;
+                }
+            }
+        }
+        if (end < 0) {
+            throw new IOException("Not a zip archive: end of central directory not found");
+        }
+        int entryCount = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (entryCount == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+            throw new IOException("Zip64 archives are not supported");
+        }
+        if (directoryOffset + directorySize > archiveSize) {
+            throw new IOException("Truncated zip archive: central directory ends at " + (directoryOffset + directorySize));
+        }
+
+        // Whole central directory in one read
+        ByteBuffer directory = ByteBuffer.allocate((int) directorySize).order(ByteOrder.LITTLE_ENDIAN);
+        FsStoryPackReader.readFully(channel, directory, directoryOffset);
+        span.addBytes(directory.position());
+        Map<String, Entry> entries = new LinkedHashMap<>(entryCount * 2);
+        int header = 0;
+        for (int i=0; i<entryCount; i++) {
+            if (header + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(header) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory entry " + i);
+            }
+            int flags = directory.getShort(header + 8) & 0xFFFF;
+            int nameLength = directory.getShort(header + 28) & 0xFFFF;
+            int extraLength = directory.getShort(header + 30) & 0xFFFF;
+            int commentLength = directory.getShort(header + 32) & 0xFFFF;
+            if (header + CENTRAL_HEADER_SIZE + nameLength > directorySize) {
+                throw new IOException("Invalid central directory entry " + i);
+            }
+            String name = new String(directory.array(), header + CENTRAL_HEADER_SIZE, nameLength,
+                    (flags & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1).replace('\\', '/');
+            if (!name.endsWith("/")) {
+                entries.put(name, new Entry(name, flags,
+                        directory.getShort(header + 10) & 0xFFFF,
+                        directory.getInt(header + 20) & 0xFFFFFFFFL,
+                        directory.getInt(header + 24) & 0xFFFFFFFFL,
+                        directory.getInt(header + 42) & 0xFFFFFFFFL));
+            }
+            header += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private static ByteBuffer readTail(FileChannel channel, long archiveSize, int size, Tracer.Span span) throws IOException {
+        ByteBuffer tail = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        FsStoryPackReader.readFully(channel, tail, archiveSize - size);
+        span.addBytes(tail.position());
+        return tail;
+    }
+
+    private static String findPackFolder(Map<String, Entry> entries) {
+        // Shallowest 'ni' entry: at the root, or in the pack's folder
+        String packFolder = null;
+        for (String name : entries.keySet()) {
+            if (name.equals(NODE_INDEX_FILENAME)) {
+                return "";
+            }
+            if (name.endsWith("/" + NODE_INDEX_FILENAME)) {
+                String folder = name.substring(0, name.length() - NODE_INDEX_FILENAME.length());
+                if (packFolder == null || folder.length() < packFolder.length()) {
+                    packFolder = folder;
+                }
+            }
+        }
+        return packFolder;
+    }
+
+    public Path getArchive() {
+        return archive;
+    }
+
+    public String getUuid() {
+        // Folder name is the uuid (minus the eventual timestamp), archive name when the pack is at the root
+        String name = packFolder.isEmpty() ? archive.getFileName().toString() : packFolder.substring(0, packFolder.length() - 1);
+        name = name.substring(name.lastIndexOf('/') + 1);
+        return name.split("\\.", 2)[0];
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public Entry getEntry(String name) {
+        // Name relative to the pack folder, e.g. "rf/000/00000001"
+        return entries.get(packFolder + name);
+    }
+
+    public byte[] readEntry(String name) throws IOException {
+        // Entry data as stored in the pack (inflated, but still ciphered if the pack is)
+        Entry entry = getEntry(name);
+        if (entry == null) {
+            throw new IOException("No entry " + packFolder + name + " in archive " + archive);
+        }
+        return readEntry(entry);
+    }
+
+    private byte[] readEntry(Entry entry) throws IOException {
+        try (Tracer.Span span = Tracer.begin("readEntry", entry.name)) {
+            byte[] data = readEntry(channel, entry);
+            span.addBytes(entry.compressedSize);
+            return data;
+        }
+    }
+
+    static long locateData(FileChannel channel, Entry entry) throws IOException {
+        // Data starts after the local header, whose extra field may differ from the central directory one
+        synchronized (entry) {
+            if (entry.dataOffset < 0) {
+                ByteBuffer bb = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                FsStoryPackReader.readFully(channel, bb, entry.localHeaderOffset);
+                if (bb.hasRemaining() || bb.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                    throw new IOException("Invalid local header for entry " + entry.name);
+                }
+                entry.dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+                        + (bb.getShort(26) & 0xFFFF) + (bb.getShort(28) & 0xFFFF);
+            }
+            return entry.dataOffset;
+        }
+    }
+
+    static byte[] readEntry(FileChannel channel, Entry entry) throws IOException {
+        if ((entry.flags & FLAG_ENCRYPTED) != 0) {
+            throw new IOException("Encrypted entry " + entry.name + " is not supported");
+        }
+        if (entry.size > Integer.MAX_VALUE || entry.compressedSize > Integer.MAX_VALUE) {
+            throw new IOException("Entry " + entry.name + " is too large");
+        }
+        ByteBuffer bb = ByteBuffer.allocate((int) entry.compressedSize);
+        FsStoryPackReader.readFully(channel, bb, locateData(channel, entry));
+        if (bb.hasRemaining()) {
+            throw new IOException("Truncated entry " + entry.name);
+        }
+        if (entry.method == METHOD_STORED) {
+            return bb.array();
+        }
+        if (entry.method != METHOD_DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.method + " for entry " + entry.name);
+        }
+        // Raw deflate data, inflated at once since the inflated size is known
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(bb.array());
+            byte[] data = new byte[(int) entry.size];
+            int n = 0;
+            while (n < data.length && !inflater.finished()) {
+                int inflated = inflater.inflate(data, n, data.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != data.length) {
+                throw new IOException("Truncated compressed entry " + entry.name);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed entry " + entry.name, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private byte[] readIndex(String name, boolean isCleartext) throws IOException {
+        byte[] data = readEntry(name);
+        if (!isCleartext) {
+            XXTEACipher.decryptHeader(data, 0, data.length);
+        }
+        return data;
+    }
+
+    public boolean isCleartext() {
+        return getEntry(CLEARTEXT_FILENAME) != null;
+    }
+
+    public StoryPackMetadata readMetadata() throws IOException {
+        StoryPackMetadata metadata = new StoryPackMetadata(Constants.PACK_FORMAT_ARCHIVE);
+        Entry ni = getEntry(NODE_INDEX_FILENAME);
+        byte[] head;
+        if (ni.isStored()) {
+            // Version only needs the first bytes of 'ni'
+            ByteBuffer bb = ByteBuffer.allocate(4);
+            FsStoryPackReader.readFully(channel, bb, locateData(channel, ni));
+            head = bb.array();
+        } else {
+            head = readEntry(ni);
+        }
+        metadata.setVersion(ByteBuffer.wrap(head).order(ByteOrder.LITTLE_ENDIAN).getShort(2));
+        metadata.setUuid(getUuid());
+        metadata.setNightModeAvailable(getEntry(NIGHT_MODE_FILENAME) != null);
+        return metadata;
+    }
+
+    @SuppressWarnings("try")
+    public CompactStoryPack readCompact() throws IOException {
+        String uuid = getUuid();
+        boolean isCleartext = isCleartext();
+        byte[] riContent = readIndex(IMAGE_INDEX_FILENAME, isCleartext);
+        byte[] siContent = readIndex(SOUND_INDEX_FILENAME, isCleartext);
+        byte[] liContent = readIndex(LIST_INDEX_FILENAME, isCleartext);
+        ByteBuffer niContent = ByteBuffer.wrap(readEntry(NODE_INDEX_FILENAME));
+        try (Tracer.Span span = Tracer.begin("decodeCompact", uuid)) {
+            return FsStoryPackReader.decodeCompact(uuid, getEntry(NIGHT_MODE_FILENAME) != null, isCleartext,
+                    niContent, liContent, riContent, siContent);
+        }
+    }
+
+    @SuppressWarnings("try")
+    public StoryPack read() throws IOException {
+        try (Tracer.Span span = Tracer.begin("readArchive", archive)) {
+            return toStoryPack(readCompact());
+        }
+    }
+
+    public StoryPack toStoryPack(CompactStoryPack pack) throws IOException {
+        // Building the graph reads nothing more: assets locate their entry's data when they are read
+        return reader.toStoryPack(pack, new FsStoryPackReader.AssetFactory() {
+            @Override
+            public ImageAsset createImage(CompactStoryPack pack, int index) throws IOException {
+                Entry entry = getAssetEntry(IMAGE_FOLDER, pack.getImagePaths()[index]);
+                if (!reader.isLazyImages()) {
+                    byte[] data = readEntry(entry);
+                    if (!pack.isCleartext()) {
+                        XXTEACipher.decryptHeader(data, 0, data.length);
+                    }
+                    return new ImageAsset("image/bmp", data);
+                }
+                return new ArchiveImageAsset(archive, pack.isCleartext(), pack.getUuid(), index, entry);
+            }
+
+            @Override
+            public AudioAsset createSound(CompactStoryPack pack, int index) throws IOException {
+                Entry entry = getAssetEntry(SOUND_FOLDER, pack.getSoundPaths()[index]);
+                if (!entry.isStored()) {
+                    // Can't be read in place: inflated when played (an unreadable entry fails playback, not the pack)
+                    return new InflatedAudioAsset(archive, entry, !pack.isCleartext());
+                }
+                return new StoredAudioAsset(archive, entry, !pack.isCleartext());
+            }
+        });
+    }
+
+    private Entry getAssetEntry(String folder, String path) throws IOException {
+        Entry entry = getEntry(folder + path);
+        if (entry == null) {
+            throw new IOException("No entry " + packFolder + folder + path + " in archive " + archive);
+        }
+        return entry;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Assets re-open the archive by path, so they remain readable once closed
+        channel.close();
+    }
+
+    private static class ArchiveImageAsset extends LazyImageAsset {
+
+        private final Entry entry;
+
+        ArchiveImageAsset(Path archive, boolean cleartext, String packUuid, int index, Entry entry) {
+            super("image/bmp", archive, cleartext, packUuid, index);
+            this.entry = entry;
+        }
+
+        @Override
+        protected byte[] readData() throws IOException {
+            try (Tracer.Span span = Tracer.begin("readEntry", entry.name);
+                 FileChannel channel = FileChannel.open(getPath(), StandardOpenOption.READ)) {
+                byte[] data = readEntry(channel, entry);
+                span.addFiles(1).addBytes(entry.compressedSize);
+                if (!isCleartext()) {
+                    XXTEACipher.decryptHeader(data, 0, data.length);
+                }
+                return data;
+            }
+        }
+    }
+
+    private static class StoredAudioAsset extends AudioAsset implements CipheredAssetReader.Region {
+
+        private final Entry entry;
+
+        StoredAudioAsset(Path archive, Entry entry, boolean ciphered) {
+            // Offset is located by the reader which opens the archive
+            super("audio/mpeg", archive, -1, entry.size, ciphered);
+            this.entry = entry;
+        }
+
+        @Override
+        public long locate(FileChannel channel) throws IOException {
+            return locateData(channel, entry);
+        }
+    }
+
+    private static class InflatedAudioAsset extends AudioAsset implements CipheredAssetReader.Source {
+
+        private final Entry entry;
+
+        InflatedAudioAsset(Path archive, Entry entry, boolean ciphered) {
+            super("audio/mpeg", archive, -1, entry.size, ciphered);
+            this.entry = entry;
+        }
+
+        @Override
+        public byte[] read() throws IOException {
+            // Whole clip in memory, deciphered
+            try (Tracer.Span span = Tracer.begin("inflateAudio", entry.name);
+                 FileChannel channel = FileChannel.open(getPath(), StandardOpenOption.READ)) {
+                byte[] data = readEntry(channel, entry);
+                span.addFiles(1).addBytes(entry.compressedSize);
+                if (isCiphered()) {
+                    XXTEACipher.decryptHeader(data, 0, data.length);
+                }
+                return data;
+            }
+        }
+    }
+}
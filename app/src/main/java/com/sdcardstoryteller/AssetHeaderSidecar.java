@@ -0,0 +1,363 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide index of the deciphered headers of ciphered assets: one sidecar file per pack (in
+ * app-private storage) holds the size and the deciphered first block of every 'rf/' and 'sf/'
+ * file, so that opening an asset is a single read of its body (plus an attribute read, to check
+ * the asset didn't change), with no cipher work.
+ * A pack's sidecar is built in background on first access to one of its assets (reads meanwhile
+ * decipher as usual), and rebuilt when the pack's index files fingerprint changes. A record is only
+ * used if its asset still has the recorded size and modification time, otherwise the pack's sidecar
+ * is rebuilt. Sidecars are memory-mapped, nothing is kept on the heap but the asset paths of the
+ * last packs used.
+ *
+ * Sidecar file (big-endian):
+ *   int magic, int format version, fingerprint (int count, longs), int assets count
+ *   for each asset: short path length, path relative to the pack folder (UTF-8), int record offset
+ *   records: long size, long modification time (ms), short header length, deciphered header
+ */
+public class AssetHeaderSidecar {
+
+    private static final int MAGIC = 0x53544853;   // "STHS"
+    private static final int FORMAT_VERSION = 2;
+    private static final String SUFFIX = ".headers";
+    private static final String[] ASSET_FOLDERS = { "rf", "sf" };
+    private static final int MAX_PACKS = 8;
+    private static final Logger LOG = Logger.getLogger(AssetHeaderSidecar.class.getName());
+
+    private static final AssetHeaderSidecar INSTANCE = new AssetHeaderSidecar();
+
+    public static AssetHeaderSidecar getInstance() {
+        return INSTANCE;
+    }
+
+    public static class Header {
+
+        private final long size;
+        private final long lastModified;
+        private final byte[] data;
+
+        Header(long size, long lastModified, byte[] data) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+
+        public long getSize() {
+            // Size of the asset file
+            return size;
+        }
+
+        public long getLastModified() {
+            // Modification time of the asset file when the record was built (ms)
+            return lastModified;
+        }
+
+        public byte[] getData() {
+            // Deciphered first block (the whole file if smaller)
+            return data;
+        }
+    }
+
+    private static class PackSidecar {
+
+        private volatile boolean ready = false;
+        private ByteBuffer buffer;
+        private Map<String, Integer> records;
+    }
+
+    // Access-ordered, only the last packs used are kept
+    private final Map<String, PackSidecar> packs = new LinkedHashMap<String, PackSidecar>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PackSidecar> eldest) {
+            return size() > MAX_PACKS;
+        }
+    };
+    // Packs with a record which didn't match its asset: their sidecar file is rebuilt, not loaded again
+    private final Set<String> stale = new HashSet<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "asset-headers");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+    private volatile File folder = null;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    public void setFolder(File folder) {
+        // Sidecars are disabled until a folder is set
+        this.folder = folder;
+        synchronized (packs) {
+            packs.clear();
+        }
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public Header get(Path asset) {
+        // Null if the asset isn't in an 'rf/' or 'sf/' folder, its pack's sidecar isn't ready, or the asset changed
+        File sidecarFolder = folder;
+        Path subFolder = asset.getParent();
+        Path assetFolder = subFolder == null ? null : subFolder.getParent();
+        Path packFolder = assetFolder == null ? null : assetFolder.getParent();
+        if (sidecarFolder == null || packFolder == null || !isAssetFolder(assetFolder.getFileName().toString())) {
+            return null;
+        }
+        PackSidecar pack;
+        boolean created = false;
+        boolean rebuild = false;
+        synchronized (packs) {
+            pack = packs.get(packFolder.toString());
+            if (pack == null) {
+                pack = new PackSidecar();
+                packs.put(packFolder.toString(), pack);
+                created = true;
+                rebuild = stale.remove(packFolder.toString());
+            }
+        }
+        if (created) {
+            PackSidecar building = pack;
+            boolean force = rebuild;
+            executor.execute(() -> loadOrBuild(sidecarFolder, packFolder.toFile(), building, force));
+        }
+        Header header = pack.ready
+                ? readRecord(pack, assetFolder.getFileName() + "/" + subFolder.getFileName() + "/" + asset.getFileName())
+                : null;
+        if (header != null && !isUnchanged(asset, header)) {
+            // Asset replaced since the sidecar was built
+            invalidate(asset);
+            header = null;
+        }
+        synchronized (this) {
+            if (header == null) {
+                missCount++;
+            } else {
+                hitCount++;
+            }
+        }
+        return header;
+    }
+
+    public void invalidate(Path asset) {
+        // Asset doesn't match its record (pack changed meanwhile): the pack's sidecar is rebuilt on next access
+        Path subFolder = asset.getParent();
+        Path packFolder = subFolder == null || subFolder.getParent() == null ? null : subFolder.getParent().getParent();
+        if (packFolder != null) {
+            synchronized (packs) {
+                packs.remove(packFolder.toString());
+                stale.add(packFolder.toString());
+            }
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    private static boolean isAssetFolder(String name) {
+        for (String assetFolder : ASSET_FOLDERS) {
+            if (assetFolder.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUnchanged(Path asset, Header header) {
+        // One attribute read: size and modification time at once
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(asset, BasicFileAttributes.class);
+            return attributes.size() == header.size && attributes.lastModifiedTime().toMillis() == header.lastModified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Header readRecord(PackSidecar pack, String path) {
+        Integer record = pack.records.get(path);
+        if (record == null) {
+            return null;
+        }
+        ByteBuffer bb = pack.buffer.duplicate();
+        bb.position(record);
+        long size = bb.getLong();
+        long lastModified = bb.getLong();
+        byte[] data = new byte[bb.getShort() & 0xffff];
+        bb.get(data);
+        return new Header(size, lastModified, data);
+    }
+
+    private void loadOrBuild(File sidecarFolder, File packFolder, PackSidecar pack, boolean rebuild) {
+        // A stale sidecar still matches the index files fingerprint: it must be rebuilt, not loaded
+        File file = new File(sidecarFolder, packFolder.getName() + SUFFIX);
+        long[] fingerprint = StoryGraphCache.fingerprint(packFolder);
+        try {
+            if (rebuild || !load(file, fingerprint, pack)) {
+                build(packFolder, file, fingerprint);
+                if (!load(file, fingerprint, pack)) {
+                    throw new IOException("Invalid sidecar " + file);
+                }
+            }
+            pack.ready = true;
+        } catch (IOException | RuntimeException e) {
+            // Assets of this pack keep being deciphered on each read
+            LOG.log(Level.WARNING, "Cannot index asset headers of " + packFolder, e);
+        }
+    }
+
+    private static boolean load(File file, long[] fingerprint, PackSidecar pack) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        try (Tracer.Span span = Tracer.begin("loadAssetHeaders", file);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            span.addFiles(1);
+            if (bb.getInt() != MAGIC || bb.getInt() != FORMAT_VERSION || bb.getInt() != fingerprint.length) {
+                return false;
+            }
+            for (long value : fingerprint) {
+                if (bb.getLong() != value) {
+                    return false;
+                }
+            }
+            int count = bb.getInt();
+            Map<String, Integer> records = new HashMap<>(count * 2);
+            for (int i=0; i<count; i++) {
+                byte[] path = new byte[bb.getShort() & 0xffff];
+                bb.get(path);
+                records.put(new String(path, StandardCharsets.UTF_8), bb.getInt());
+            }
+            pack.buffer = bb;
+            pack.records = records;
+            return true;
+        }
+    }
+
+    private static void build(File packFolder, File file, long[] fingerprint) throws IOException {
+        try (Tracer.Span span = Tracer.begin("buildAssetHeaders", packFolder)) {
+            List<String> paths = new ArrayList<>();
+            List<BasicFileAttributes> attributes = new ArrayList<>();
+            for (String assetFolder : ASSET_FOLDERS) {
+                Path root = packFolder.toPath();
+                Path folder = root.resolve(assetFolder);
+                if (!Files.isDirectory(folder)) {
+                    continue;
+                }
+                Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile()) {
+                            paths.add(root.relativize(f).toString().replace(File.separatorChar, '/'));
+                            attributes.add(attrs);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+
+            // Records are written after the directory, whose size is known upfront
+            int directorySize = 4;
+            List<byte[]> encodedPaths = new ArrayList<>(paths.size());
+            for (String path : paths) {
+                byte[] encoded = path.getBytes(StandardCharsets.UTF_8);
+                encodedPaths.add(encoded);
+                directorySize += 2 + encoded.length + 4;
+            }
+            int recordsStart = 4 + 4 + 4 + fingerprint.length * 8 + directorySize;
+            ByteArrayOutputStream directory = new ByteArrayOutputStream(directorySize);
+            ByteArrayOutputStream records = new ByteArrayOutputStream(paths.size() * (18 + XXTEACipher.HEADER_SIZE));
+            DataOutputStream dir = new DataOutputStream(directory);
+            DataOutputStream rec = new DataOutputStream(records);
+            dir.writeInt(paths.size());
+            ByteBuffer bb = ByteBuffer.allocate(XXTEACipher.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i=0; i<paths.size(); i++) {
+                dir.writeShort(encodedPaths.get(i).length);
+                dir.write(encodedPaths.get(i));
+                dir.writeInt(recordsStart + rec.size());
+                try (FileChannel channel = FileChannel.open(new File(packFolder, paths.get(i)).toPath(), StandardOpenOption.READ)) {
+                    // Size and time as listed: an asset changed since then is caught by its first read
+                    long size = attributes.get(i).size();
+                    bb.clear();
+                    bb.limit((int) Math.min(XXTEACipher.HEADER_SIZE, size));
+                    FsStoryPackReader.readFully(channel, bb, 0);
+                    span.addFiles(1).addBytes(bb.position());
+                    bb.flip();
+                    XXTEACipher.decryptHeader(bb, (int) Math.min(Integer.MAX_VALUE, size));
+                    rec.writeLong(size);
+                    rec.writeLong(attributes.get(i).lastModifiedTime().toMillis());
+                    rec.writeShort(bb.limit());
+                    rec.write(bb.array(), 0, bb.limit());
+                }
+            }
+            dir.flush();
+            rec.flush();
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(recordsStart + records.size());
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeInt(MAGIC);
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeInt(fingerprint.length);
+            for (long value : fingerprint) {
+                dos.writeLong(value);
+            }
+            directory.writeTo(dos);
+            records.writeTo(dos);
+            dos.flush();
+
+            // Write to a temporary file then rename, so that a sidecar is never seen partially written
+            File sidecarFolder = file.getParentFile();
+            if (!sidecarFolder.isDirectory() && !sidecarFolder.mkdirs()) {
+                throw new IOException("Cannot create sidecar folder " + sidecarFolder);
+            }
+            // (prefix is at least 3 characters long, whatever the pack folder name)
+            File tmp = File.createTempFile(packFolder.getName() + SUFFIX, ".tmp", sidecarFolder);
+            try {
+                Files.write(tmp.toPath(), bos.toByteArray());
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+        }
+    }
+}
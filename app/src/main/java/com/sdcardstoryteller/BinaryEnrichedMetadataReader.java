@@ -0,0 +1,127 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.metadata.StoryPackMetadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Reads the metadata of a pack in the binary (raw) format, including the enriched metadata (title,
+ * description and thumbnail) stored in its first sector, without parsing any stage node.
+ * A single aligned read of the first two sectors is enough, unless the thumbnail spills over the
+ * second sector.
+ *
+ * First sector of a pack (big-endian):
+ *   0    short   stage nodes count
+ *   2    byte    factory disabled
+ *   3    short   pack version
+ *   5    padding (BINARY_ENRICHED_METADATA_SECTOR_1_ALIGNMENT_PADDING)
+ *   64   title, UTF-16 chars, zero-padded (BINARY_ENRICHED_METADATA_TITLE_TRUNCATE)
+ *   192  description, UTF-16 chars, zero-padded (BINARY_ENRICHED_METADATA_DESCRIPTION_TRUNCATE)
+ *   448  int     thumbnail size in bytes (0 if none)
+ *   452  thumbnail data, continued on the following sectors
+ * Stage nodes start on the next sector boundary, the first one begins with the pack uuid.
+ */
+public class BinaryEnrichedMetadataReader {
+
+    static final int TITLE_OFFSET = 5 + Constants.BINARY_ENRICHED_METADATA_SECTOR_1_ALIGNMENT_PADDING;
+    static final int DESCRIPTION_OFFSET = TITLE_OFFSET + Constants.BINARY_ENRICHED_METADATA_TITLE_TRUNCATE * 2;
+    static final int THUMBNAIL_SIZE_OFFSET = DESCRIPTION_OFFSET + Constants.BINARY_ENRICHED_METADATA_DESCRIPTION_TRUNCATE * 2;
+    static final int THUMBNAIL_OFFSET = THUMBNAIL_SIZE_OFFSET + 4;
+
+    public StoryPackMetadata readMetadata(Path image, long packSector, boolean withThumbnail) throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            return readMetadata(channel, packSector, withThumbnail);
+        }
+    }
+
+    public StoryPackMetadata readMetadata(FileChannel channel, long packSector, boolean withThumbnail) throws IOException {
+        // Pack size unknown: its header is only bounded by the end of the image
+        return readMetadata(channel, packSector, Long.MAX_VALUE, withThumbnail);
+    }
+
+    public StoryPackMetadata readMetadata(FileChannel channel, long packSector, long packSectors, boolean withThumbnail) throws IOException {
+        // packSector is the absolute sector of the pack's first sector in the image
+        try (Tracer.Span span = Tracer.begin("readEnrichedMetadata", packSector)) {
+            long packOffset = packSector * Constants.SECTOR_SIZE;
+            packSectors = Math.min(packSectors, channel.size() / Constants.SECTOR_SIZE - packSector);
+            ByteBuffer bb = ByteBuffer.allocate(Constants.SECTOR_SIZE * 2);
+            FsStoryPackReader.readFully(channel, bb, packOffset);
+            span.addBytes(bb.position());
+            if (bb.position() < Constants.SECTOR_SIZE) {
+                throw new IOException("Truncated pack header at sector " + packSector);
+            }
+
+            StoryPackMetadata metadata = new StoryPackMetadata(Constants.PACK_FORMAT_RAW);
+            metadata.setVersion(bb.getShort(3));
+            metadata.setTitle(readString(bb, TITLE_OFFSET, Constants.BINARY_ENRICHED_METADATA_TITLE_TRUNCATE));
+            metadata.setDescription(readString(bb, DESCRIPTION_OFFSET, Constants.BINARY_ENRICHED_METADATA_DESCRIPTION_TRUNCATE));
+            int thumbnailSize = bb.getInt(THUMBNAIL_SIZE_OFFSET);
+            checkThumbnailSize(thumbnailSize, packSector, packSectors);
+
+            int headerSectors = getHeaderSectors(thumbnailSize);
+            int firstNode = headerSectors * Constants.SECTOR_SIZE;
+            ByteBuffer header = bb;
+            int uuidOffset = firstNode;
+            if (firstNode + 16 > bb.capacity()) {
+                if (withThumbnail) {
+                    // Thumbnail spills over the next sectors: read it along with the first stage node uuid, in one read
+                    header = ByteBuffer.allocate(firstNode + 16);
+                    FsStoryPackReader.readFully(channel, header, packOffset);
+                } else {
+                    // Only the uuid, the thumbnail sectors are skipped
+                    header = ByteBuffer.allocate(16);
+                    FsStoryPackReader.readFully(channel, header, packOffset + firstNode);
+                    uuidOffset = 0;
+                }
+                span.addBytes(header.position());
+            }
+            if (header.position() < uuidOffset + 16) {
+                throw new IOException("Truncated first stage node at sector " + (packSector + headerSectors));
+            }
+            metadata.setUuid(new UUID(header.getLong(uuidOffset), header.getLong(uuidOffset + 8)).toString());
+            if (withThumbnail && thumbnailSize > 0) {
+                byte[] thumbnail = new byte[thumbnailSize];
+                System.arraycopy(header.array(), THUMBNAIL_OFFSET, thumbnail, 0, thumbnailSize);
+                metadata.setThumbnail(thumbnail);
+            }
+            return metadata;
+        }
+    }
+
+    public static int getHeaderSectors(int thumbnailSize) {
+        // Number of sectors taken by the pack header and its enriched metadata
+        return (int) ((THUMBNAIL_OFFSET + (long) thumbnailSize + Constants.SECTOR_SIZE - 1) / Constants.SECTOR_SIZE);
+    }
+
+    static void checkThumbnailSize(int thumbnailSize, long packSector, long packSectors) throws IOException {
+        // Size is read from the card: header and first stage node must fit in the pack (and in a buffer)
+        long packBytes = Math.min(packSectors * Constants.SECTOR_SIZE, Integer.MAX_VALUE);
+        if (thumbnailSize < 0 || (getHeaderSectors(thumbnailSize) + 1L) * Constants.SECTOR_SIZE > packBytes) {
+            throw new IOException("Invalid thumbnail size " + thumbnailSize + " at sector " + packSector);
+        }
+    }
+
+    static String readString(ByteBuffer bb, int offset, int maxChars) {
+        // Zero-padded UTF-16 chars, null when empty (pack without enriched metadata)
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<maxChars; i++) {
+            char c = bb.getChar(offset + i*2);
+            if (c == 0) {
+                break;
+            }
+            sb.append(c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+}
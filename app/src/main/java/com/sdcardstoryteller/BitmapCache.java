@@ -0,0 +1,183 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+import com.sdcardstoryteller.model.ImageAsset;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of decoded bitmaps, keyed by image asset identity. Images are decoded with a sample size
+ * matching the size they are displayed at, and evicted bitmaps are recycled as decoding targets
+ * (inBitmap) for the next images.
+ * A bitmap is only recycled once nothing displays it anymore: displays hold the bitmaps they show
+ * (acquire() when shown, release() when disposed), a held bitmap evicted from the cache is recycled
+ * on its last release.
+ */
+public class BitmapCache {
+
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final int MAX_REUSABLE = 4;
+
+    private static final BitmapCache INSTANCE = new BitmapCache(DEFAULT_MAX_BYTES);
+
+    public static BitmapCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final LruCache<ImageAsset, Bitmap> cache;
+    private final List<Bitmap> reusable = new ArrayList<>();
+    // Guarded by 'reusable': hold count of displayed bitmaps, and whether they were evicted meanwhile
+    private final Map<Bitmap, Integer> holds = new IdentityHashMap<>();
+    private final Map<Bitmap, Boolean> evictedWhileHeld = new IdentityHashMap<>();
+
+    public BitmapCache(int maxBytes) {
+        cache = new LruCache<ImageAsset, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(ImageAsset key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, ImageAsset key, Bitmap oldValue, Bitmap newValue) {
+                // Keep a few evicted bitmaps, their memory is reused for the next decodes.
+                // Bitmaps still displayed are only kept once released
+                if (evicted && oldValue.isMutable()) {
+                    synchronized (reusable) {
+                        if (holds.containsKey(oldValue)) {
+                            evictedWhileHeld.put(oldValue, Boolean.TRUE);
+                        } else {
+                            addReusable(oldValue);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    public Bitmap get(ImageAsset asset, int targetWidth, int targetHeight) {
+        Bitmap bitmap = cache.get(asset);
+        if (bitmap == null) {
+            bitmap = decode(asset.getRawData(), targetWidth, targetHeight);
+            if (bitmap != null) {
+                cache.put(asset, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    public Bitmap peek(ImageAsset asset) {
+        // Cached bitmap only, never decodes
+        return cache.get(asset);
+    }
+
+    public void acquire(Bitmap bitmap) {
+        // The bitmap is displayed: it isn't recycled until released.
+        // Bitmaps just returned by get() or peek() are the most recently used ones, so they aren't evicted
+        // before being acquired unless the whole budget is decoded meanwhile
+        synchronized (reusable) {
+            Integer count = holds.get(bitmap);
+            holds.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    public void release(Bitmap bitmap) {
+        synchronized (reusable) {
+            Integer count = holds.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                holds.put(bitmap, count - 1);
+            } else {
+                holds.remove(bitmap);
+                if (evictedWhileHeld.remove(bitmap) != null) {
+                    addReusable(bitmap);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        cache.evictAll();
+        synchronized (reusable) {
+            reusable.clear();
+            evictedWhileHeld.clear();
+        }
+    }
+
+    private void addReusable(Bitmap bitmap) {
+        // Called with 'reusable' locked
+        if (reusable.size() >= MAX_REUSABLE) {
+            reusable.remove(0);
+        }
+        reusable.add(bitmap);
+    }
+
+    private Bitmap decode(byte[] data, int targetWidth, int targetHeight) {
+        // Read dimensions only, to pick the sample size
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            // Not an image the decoder knows
+            return null;
+        }
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+        options.inJustDecodeBounds = false;
+        // Story images have no alpha channel
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inMutable = true;
+        options.inBitmap = takeReusable((options.outWidth / options.inSampleSize) * (options.outHeight / options.inSampleSize) * 2);
+        try (Tracer.Span span = Tracer.begin("decodeBitmap")) {
+            span.addBytes(data.length);
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } catch (IllegalArgumentException e) {
+                // Reusable bitmap rejected by the decoder
+                options.inBitmap = null;
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+        }
+    }
+
+    private Bitmap takeReusable(int byteCount) {
+        synchronized (reusable) {
+            Iterator<Bitmap> it = reusable.iterator();
+            while (it.hasNext()) {
+                Bitmap candidate = it.next();
+                if (candidate.isRecycled()) {
+                    it.remove();
+                } else if (candidate.getAllocationByteCount() >= byteCount) {
+                    it.remove();
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        // Largest power of 2 keeping both dimensions at least as large as the target
+        int sampleSize = 1;
+        if (targetWidth > 0 && targetHeight > 0) {
+            while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+                sampleSize *= 2;
+            }
+        }
+        return sampleSize;
+    }
+}
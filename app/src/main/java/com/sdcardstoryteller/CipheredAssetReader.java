@@ -0,0 +1,200 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.AudioAsset;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Random access to an asset file whose first block is ciphered. Reads are positional reads on a
+ * single FileChannel, the first block is deciphered once and then served from memory, and no
+ * allocation happens per read.
+ * Assets which can't be read in place (e.g. compressed in an archive) are Sources: their whole
+ * deciphered data is read on first access and served from memory. Assets whose start is only
+ * known once their file is read (e.g. past an archive entry's header) are Regions.
+ */
+public class CipheredAssetReader implements Closeable {
+
+    public interface Source {
+
+        byte[] read() throws IOException;
+    }
+
+    public interface Region {
+
+        long locate(FileChannel channel) throws IOException;
+    }
+
+    private final Path path;
+    private final boolean ciphered;
+    private long start;
+    private final long length;
+    private final Source source;
+    private final Region region;
+
+    private FileChannel channel = null;
+    private long size = -1;
+    private byte[] header = null;
+
+    // Wrapper of the last caller buffer, callers usually read again and again into the same array
+    private byte[] lastBuffer = null;
+    private ByteBuffer lastWrapped = null;
+
+    public CipheredAssetReader(Path path, boolean ciphered) {
+        this(path, ciphered, 0, -1);
+    }
+
+    public CipheredAssetReader(Path path, boolean ciphered, long start, long length) {
+        // Asset is 'length' bytes at 'start' of the file (-1 for up to the end of the file)
+        this.path = path;
+        this.ciphered = ciphered;
+        this.start = start;
+        this.length = length;
+        this.source = null;
+        this.region = null;
+    }
+
+    public CipheredAssetReader(Path path, boolean ciphered, Region region, long length) {
+        // Asset is 'length' bytes at the start the region locates when the file is opened
+        this.path = path;
+        this.ciphered = ciphered;
+        this.start = 0;
+        this.length = length;
+        this.source = null;
+        this.region = region;
+    }
+
+    public CipheredAssetReader(Source source) {
+        this.path = null;
+        this.ciphered = false;
+        this.start = 0;
+        this.length = -1;
+        this.source = source;
+        this.region = null;
+    }
+
+    public static CipheredAssetReader of(AudioAsset asset) {
+        if (asset instanceof Source) {
+            return new CipheredAssetReader((Source) asset);
+        }
+        if (asset instanceof Region) {
+            return new CipheredAssetReader(asset.getPath(), asset.isCiphered(), (Region) asset, asset.getLength());
+        }
+        return new CipheredAssetReader(asset.getPath(), asset.isCiphered(), asset.getOffset(), asset.getLength());
+    }
+
+    private void open() throws IOException {
+        if (source != null) {
+            // Whole data is the "header", the file is never read
+            if (header == null) {
+                header = source.read();
+                size = header.length;
+            }
+            return;
+        }
+        if (channel == null) {
+            FileChannel opened = FileChannel.open(path, StandardOpenOption.READ);
+            if (region != null) {
+                try {
+                    start = region.locate(opened);
+                } catch (IOException | RuntimeException e) {
+                    opened.close();
+                    throw e;
+                }
+            }
+            channel = opened;
+            if (ciphered && start == 0 && length < 0) {
+                // Whole asset file: size and deciphered header may come from the pack's sidecar
+                AssetHeaderSidecar.Header sidecar = AssetHeaderSidecar.getInstance().get(path);
+                if (sidecar != null) {
+                    size = sidecar.getSize();
+                    header = sidecar.getData();
+                    return;
+                }
+            }
+            size = Math.max(0, channel.size() - start);
+            if (length >= 0) {
+                size = Math.min(size, length);
+            }
+            if (ciphered) {
+                ByteBuffer bb = ByteBuffer.allocate((int) Math.min(XXTEACipher.HEADER_SIZE, size)).order(ByteOrder.LITTLE_ENDIAN);
+                FsStoryPackReader.readFully(channel, bb, start);
+                bb.flip();
+                XXTEACipher.decryptHeader(bb, (int) Math.min(Integer.MAX_VALUE, size));
+                header = bb.array();
+            }
+        }
+    }
+
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        // Returns the number of bytes read, -1 at end of file
+        open();
+        if (position >= this.size) {
+            return -1;
+        }
+        if (size <= 0) {
+            return 0;
+        }
+        int read = 0;
+        if (header != null && position < header.length) {
+            // Deciphered block is served from memory, the rest of the request (if any) from the file
+            int n = (int) Math.min(size, header.length - position);
+            System.arraycopy(header, (int) position, buffer, offset, n);
+            read += n;
+            position += n;
+            offset += n;
+            size -= n;
+        }
+        // Reads never go past the end of the asset (which may not be the end of the file)
+        size = (int) Math.min(size, this.size - position);
+        if (size > 0) {
+            ByteBuffer target = wrap(buffer);
+            target.limit(offset + size).position(offset);
+            while (target.hasRemaining()) {
+                int n = channel.read(target, start + position);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+                position += n;
+            }
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    private ByteBuffer wrap(byte[] buffer) {
+        if (buffer != lastBuffer) {
+            lastBuffer = buffer;
+            lastWrapped = ByteBuffer.wrap(buffer);
+        }
+        lastWrapped.clear();
+        return lastWrapped;
+    }
+
+    public synchronized long getSize() throws IOException {
+        // Deciphered block has same size as ciphered block
+        open();
+        return size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        lastBuffer = null;
+        lastWrapped = null;
+    }
+}
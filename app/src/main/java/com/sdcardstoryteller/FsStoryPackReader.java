@@ -1,26 +1,22 @@
 package com.sdcardstoryteller;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.UUID;
 
 import static com.sdcardstoryteller.XXTEACipher.readCipheredFile;
-import com.sdcardstoryteller.model.ActionNode;
 import com.sdcardstoryteller.model.AudioAsset;
+import com.sdcardstoryteller.model.CompactStoryPack;
 import com.sdcardstoryteller.model.ControlSettings;
 import com.sdcardstoryteller.model.ImageAsset;
+import com.sdcardstoryteller.model.NodeRecord;
 import com.sdcardstoryteller.model.StageNode;
 import com.sdcardstoryteller.model.StoryPack;
 import com.sdcardstoryteller.model.Transition;
@@ -37,40 +33,148 @@ public class FsStoryPackReader {
     private static final String NIGHT_MODE_FILENAME = "nm";
     private static final String CLEARTEXT_FILENAME = ".cleartext";
     private static final byte[] CLEARTEXT_RI_BEGINNING = "000\\".getBytes(StandardCharsets.UTF_8);
+    // Header fields of 'ni' end with the factory flag, at offset 24
+    private static final int NODE_INDEX_HEADER_SIZE = 25;
+    // Smallest record holding every field (8 ints and 5 shorts)
+    private static final int NODE_RECORD_MIN_SIZE = 42;
+    private static final int VISIT_CHUNK_RECORDS = 256;
 
-    private byte[] readFile(Path file, boolean isCleartext) throws IOException {
-        if (isCleartext) {
-            return Files.readAllBytes(file);
-        } else {
-            return readCipheredFile(file);
+    public interface NodeVisitor {
+        // Called once before the first record, returning false skips the records
+        default boolean visitHeader(short version, int nodeCount, int imageCount, int soundCount, boolean factoryDisabled) {
+            return true;
         }
+
+        // Called for each record in file order, returning false stops the parse.
+        // The record instance is reused for the next one
+        boolean visitNode(NodeRecord node);
+    }
+
+    interface AssetFactory {
+        // Assets of a ri/si index, created once per index when building the graph
+        ImageAsset createImage(CompactStoryPack pack, int index) throws IOException;
+
+        AudioAsset createSound(CompactStoryPack pack, int index) throws IOException;
+    }
+
+    private final boolean lazyImages;
+    private final boolean lazyTransitions;
+
+    public FsStoryPackReader() {
+        this(false);
+    }
+
+    public FsStoryPackReader(boolean lazyImages) {
+        this(lazyImages, false);
+    }
+
+    public FsStoryPackReader(boolean lazyImages, boolean lazyTransitions) {
+        // When lazy, image assets are only read from 'rf/' on first access,
+        // and action nodes are only built from 'li' when a transition is followed
+        this.lazyImages = lazyImages;
+        this.lazyTransitions = lazyTransitions;
+    }
+
+    boolean isLazyImages() {
+        return lazyImages;
     }
 
-    private byte[] readNBytes(DataInputStream dis, int len) throws IOException {
-        // Custom implementation of DataInputStream.readNBytes to be compatible with API version
-        byte[] out = new byte[len];
-        int n = dis.read(out);
-        if (n<len) {
-            if (n<1) {
-                return new byte[0];
+    static byte[] readFile(Path file, boolean isCleartext) throws IOException {
+        try (Tracer.Span span = Tracer.begin("readFile", file)) {
+            byte[] data = null;
+            if (isCleartext) {
+                data = Files.readAllBytes(file);
+            } else {
+                AssetHeaderSidecar.Header header = AssetHeaderSidecar.getInstance().get(file);
+                if (header != null) {
+                    data = readWithHeader(file, header);
+                }
+                if (data == null) {
+                    data = readCipheredFile(file);
+                }
+            }
+            span.addFiles(1).addBytes(data.length);
+            return data;
+        }
+    }
+
+    private static byte[] readWithHeader(Path file, AssetHeaderSidecar.Header header) throws IOException {
+        // Deciphered header comes from the sidecar, only the body is read. Null if the file is shorter than its record
+        if (header.getSize() > Integer.MAX_VALUE) {
+            return null;
+        }
+        byte[] data = new byte[(int) header.getSize()];
+        System.arraycopy(header.getData(), 0, data, 0, header.getData().length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer bb = ByteBuffer.wrap(data, header.getData().length, data.length - header.getData().length);
+            readFully(channel, bb, header.getData().length);
+            if (bb.hasRemaining()) {
+                AssetHeaderSidecar.getInstance().invalidate(file);
+                return null;
             }
-            return Arrays.copyOfRange(out,0,n);
         }
-        return out;
+        return data;
+    }
+
+    static byte[] readRegion(Path file, long offset, int length, boolean isCleartext) throws IOException {
+        // Asset stored at some offset of a larger file: one positional read, then the first block is deciphered in place
+        try (Tracer.Span span = Tracer.begin("readRegion", Tracer.isEnabled() ? file + "@" + offset : null);
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer bb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, bb, offset);
+            span.addFiles(1).addBytes(bb.position());
+            if (bb.hasRemaining()) {
+                throw new IOException("Truncated asset at offset " + offset + " of " + file);
+            }
+            if (!isCleartext) {
+                bb.flip();
+                XXTEACipher.decryptHeader(bb, length);
+            }
+            return bb.array();
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer bb, long position) throws IOException {
+        // Positional read until the buffer is full or end of file is reached
+        while (bb.hasRemaining()) {
+            int n = channel.read(bb, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+    }
+
+    static ByteBuffer readIndexFile(File file) throws IOException {
+        // Bulk-read the whole index file with a single channel operation, records are then decoded in place
+        try (Tracer.Span span = Tracer.begin("readIndexFile", file);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer bb = ByteBuffer.allocate((int) channel.size());
+            readFully(channel, bb, 0);
+            span.addFiles(1).addBytes(bb.position());
+            bb.flip();
+            return bb.order(ByteOrder.LITTLE_ENDIAN);
+        }
     }
 
     public StoryPackMetadata readMetadata(Path inputFolder) throws IOException {
+        try (Tracer.Span span = Tracer.begin("readMetadata", inputFolder)) {
+            return readMetadata(inputFolder, span);
+        }
+    }
+
+    private StoryPackMetadata readMetadata(Path inputFolder, Tracer.Span span) throws IOException {
         // Pack metadata model
         StoryPackMetadata metadata = new StoryPackMetadata(Constants.PACK_FORMAT_FS);
 
-        // Open 'ni' file
+        // Read the first bytes of 'ni' file (format version and story pack version)
         File packFolder = inputFolder.toFile();
-        FileInputStream niFis = new FileInputStream(new File(packFolder, NODE_INDEX_FILENAME));
-        DataInputStream niDis = new DataInputStream(niFis);
-        ByteBuffer bb = ByteBuffer.wrap(readNBytes(niDis,512)).order(ByteOrder.LITTLE_ENDIAN);
-        metadata.setVersion(bb.getShort(2));
-        niDis.close();
-        niFis.close();
+        try (FileChannel niChannel = FileChannel.open(new File(packFolder, NODE_INDEX_FILENAME).toPath(), StandardOpenOption.READ)) {
+            ByteBuffer bb = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(niChannel, bb, 0);
+            span.addFiles(1).addBytes(bb.position());
+            metadata.setVersion(bb.getShort(2));
+        }
 
         // Folder name is the uuid (minus the eventual timestamp, so we just trim everything starting at the dot)
         String uuid = inputFolder.getFileName().toString().split("\\.", 2)[0];
@@ -82,11 +186,8 @@ public class FsStoryPackReader {
         return metadata;
     }
 
-    public StoryPack read(File packFolder) throws IOException {
-        TreeMap<Integer, StageNode> stageNodes = new TreeMap<>();                   // Keep stage nodes
-        TreeMap<Integer, Integer> actionNodesOptionsCount = new TreeMap<>();        // Keep action nodes' options count
-        TreeMap<Integer, List<Transition>> transitionsWithAction = new TreeMap<>(); // Transitions must be updated with the actual ActionNode
-
+    @SuppressWarnings("try")
+    public CompactStoryPack readCompact(File packFolder) throws IOException {
         // Folder name is the uuid (minus the eventual timestamp, so we just trim everything starting at the dot)
         String uuid = packFolder.getName();// inputFolder.getFileName().toString().split("\\.", 2)[0];
 
@@ -97,130 +198,299 @@ public class FsStoryPackReader {
         boolean isCleartext = isCleartext(packFolder, false);
 
         // Load ri, si and li files
-        //System.out.println("Reading riContent");
         byte[] riContent = readFile(new File(packFolder, IMAGE_INDEX_FILENAME).toPath(), isCleartext);
-        //System.out.println("Reading siContent");
         byte[] siContent = readFile(new File(packFolder, SOUND_INDEX_FILENAME).toPath(), isCleartext);
-        //System.out.println("Reading liContent");
         byte[] liContent = readFile(new File(packFolder, LIST_INDEX_FILENAME).toPath(), isCleartext);
 
-        // Open 'ni' file
-        FileInputStream niFis = new FileInputStream(new File(packFolder, NODE_INDEX_FILENAME));
-        DataInputStream niDis = new DataInputStream(niFis);
-        ByteBuffer bb = ByteBuffer.wrap(readNBytes(niDis,512)).order(ByteOrder.LITTLE_ENDIAN);
+        // Read 'ni' file
+        ByteBuffer niContent = readIndexFile(new File(packFolder, NODE_INDEX_FILENAME));
+
+        try (Tracer.Span span = Tracer.begin("decodeCompact", uuid)) {
+            return decodeCompact(uuid, nightModeAvailable, isCleartext, niContent, liContent, riContent, siContent);
+        }
+    }
+
+    static CompactStoryPack decodeCompact(String uuid, boolean nightModeAvailable, boolean isCleartext,
+                                          ByteBuffer bb, byte[] liContent, byte[] riContent, byte[] siContent) throws IOException {
+        bb.order(ByteOrder.LITTLE_ENDIAN);
         // Nodes index file format version (1)
-        bb.getShort();
+        bb.getShort(0);
         // Story pack version
-        short version = bb.getShort();
+        short version = bb.getShort(2);
         // Start of actual nodes list in this file (0x200 / 512)
-        int nodesList = bb.getInt();
+        int nodesList = bb.getInt(4);
         // Size of a stage node in this file (0x2C / 44)
-        int nodeSize = bb.getInt();
+        int nodeSize = bb.getInt(8);
         // Number of stage nodes in this file
-        int stageNodesCount = bb.getInt();
+        int stageNodesCount = bb.getInt(12);
         // Number of images (in RI file and rf/ folder)
-        int imageAssetsCount = bb.getInt();
+        int imageAssetsCount = bb.getInt(16);
         // Number of sounds (in SI file and sf/ folder)
-        int soundAssetsCount = bb.getInt();
+        int soundAssetsCount = bb.getInt(20);
         // Is factory pack (boolean) set to true to avoid pack inspection by official Luniistore application
-        boolean factoryDisabled = bb.get() != 0x00;
+        boolean factoryDisabled = bb.get(24) != 0x00;
+
+        int[] imageIndex = new int[stageNodesCount];
+        int[] soundIndex = new int[stageNodesCount];
+        int[] okActionOffset = new int[stageNodesCount];
+        int[] okOptionCount = new int[stageNodesCount];
+        int[] okOptionIndex = new int[stageNodesCount];
+        int[] homeActionOffset = new int[stageNodesCount];
+        int[] homeOptionCount = new int[stageNodesCount];
+        int[] homeOptionIndex = new int[stageNodesCount];
+        byte[] controls = new byte[stageNodesCount];
 
         // Read stage nodes
+        NodeRecord node = new NodeRecord();
         for (int i=0; i<stageNodesCount; i++) {
-            bb = ByteBuffer.wrap(readNBytes(niDis,nodeSize)).order(ByteOrder.LITTLE_ENDIAN);
-            int imageAssetIndexInRI = bb.getInt();
-            int soundAssetIndexInSI = bb.getInt();
-            int okTransitionActionNodeIndexInLI = bb.getInt();
-            int okTransitionNumberOfOptions = bb.getInt();
-            int okTransitionSelectedOptionIndex = bb.getInt();
-            int homeTransitionActionNodeIndexInLI = bb.getInt();
-            int homeTransitionNumberOfOptions = bb.getInt();
-            int homeTransitionSelectedOptionIndex = bb.getInt();
-            boolean wheel = bb.getShort() != 0;
-            boolean ok = bb.getShort() != 0;
-            boolean home = bb.getShort() != 0;
-            boolean pause = bb.getShort() != 0;
-            boolean autoplay = bb.getShort() != 0;
-
-            // Transition will be updated later with the actual action nodes
-            Transition okTransition = null;
-            if (okTransitionActionNodeIndexInLI != -1 && okTransitionNumberOfOptions != -1 && okTransitionSelectedOptionIndex != -1) {
-                if (!actionNodesOptionsCount.containsKey(okTransitionActionNodeIndexInLI)) {
-                    actionNodesOptionsCount.put(okTransitionActionNodeIndexInLI, okTransitionNumberOfOptions);
+            // Records are decoded in place (absolute reads, no per-record allocation)
+            int record = nodesList + i*nodeSize;
+            if (record + nodeSize > bb.limit()) {
+                throw new IOException("Truncated node index: expected " + stageNodesCount + " nodes, found " + i);
+            }
+            decodeNodeRecord(bb, record, i, node);
+            imageIndex[i] = node.getImageIndex();
+            soundIndex[i] = node.getSoundIndex();
+            okActionOffset[i] = node.getOkActionOffset();
+            okOptionCount[i] = node.getOkOptionCount();
+            okOptionIndex[i] = node.getOkOptionIndex();
+            homeActionOffset[i] = node.getHomeActionOffset();
+            homeOptionCount[i] = node.getHomeOptionCount();
+            homeOptionIndex[i] = node.getHomeOptionIndex();
+            controls[i] = node.getControls();
+        }
+
+        // Read action nodes table from 'li' file
+        ByteBuffer liBb = ByteBuffer.wrap(liContent).order(ByteOrder.LITTLE_ENDIAN);
+        int[] listIndex = new int[liContent.length/4];    // Each entry takes 4 bytes
+        for (int i=0; i<listIndex.length; i++) {
+            listIndex[i] = liBb.getInt(i*4);
+        }
+
+        return new CompactStoryPack(uuid, factoryDisabled, version, nightModeAvailable, isCleartext,
+                imageIndex, soundIndex,
+                okActionOffset, okOptionCount, okOptionIndex,
+                homeActionOffset, homeOptionCount, homeOptionIndex,
+                controls, listIndex,
+                readAssetPaths(riContent, imageAssetsCount), readAssetPaths(siContent, soundAssetsCount));
+    }
+
+    static void decodeNodeRecord(ByteBuffer bb, int record, int index, NodeRecord node) {
+        // Decodes the little-endian record starting at 'record' with absolute reads
+        int okActionOffset = bb.getInt(record + 8);
+        int okOptionCount = bb.getInt(record + 12);
+        int okOptionIndex = bb.getInt(record + 16);
+        int homeActionOffset = bb.getInt(record + 20);
+        int homeOptionCount = bb.getInt(record + 24);
+        int homeOptionIndex = bb.getInt(record + 28);
+        byte controls = (byte) ((bb.getShort(record + 32) != 0 ? CompactStoryPack.CONTROL_WHEEL : 0)
+                | (bb.getShort(record + 34) != 0 ? CompactStoryPack.CONTROL_OK : 0)
+                | (bb.getShort(record + 36) != 0 ? CompactStoryPack.CONTROL_HOME : 0)
+                | (bb.getShort(record + 38) != 0 ? CompactStoryPack.CONTROL_PAUSE : 0)
+                | (bb.getShort(record + 40) != 0 ? CompactStoryPack.CONTROL_AUTOJUMP : 0));
+
+        // A transition is only defined when action node, options count and selected option are all set
+        if (okActionOffset == -1 || okOptionCount == -1 || okOptionIndex == -1) {
+            okActionOffset = -1;
+        }
+        if (homeActionOffset == -1 || homeOptionCount == -1 || homeOptionIndex == -1) {
+            homeActionOffset = -1;
+        }
+        node.set(index, bb.getInt(record), bb.getInt(record + 4),
+                okActionOffset, okOptionCount, okOptionIndex,
+                homeActionOffset, homeOptionCount, homeOptionIndex,
+                controls);
+    }
+
+    public int visitNodes(File packFolder, NodeVisitor visitor) throws IOException {
+        // Streams the 'ni' records in file order through a fixed-size buffer, without reading 'li', 'ri', 'si' or any asset.
+        // Returns the number of records visited
+        File niFile = new File(packFolder, NODE_INDEX_FILENAME);
+        try (Tracer.Span span = Tracer.begin("visitNodes", packFolder);
+             FileChannel channel = FileChannel.open(niFile.toPath(), StandardOpenOption.READ)) {
+            span.addFiles(1);
+            ByteBuffer header = ByteBuffer.allocate(NODE_INDEX_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            span.addBytes(header.position());
+            if (header.hasRemaining()) {
+                throw new IOException("Truncated node index header in " + niFile);
+            }
+            short version = header.getShort(2);
+            int nodesList = header.getInt(4);
+            int nodeSize = header.getInt(8);
+            int stageNodesCount = header.getInt(12);
+            if (!visitor.visitHeader(version, stageNodesCount, header.getInt(16), header.getInt(20), header.get(24) != 0x00)) {
+                return 0;
+            }
+            if (nodeSize < NODE_RECORD_MIN_SIZE) {
+                throw new IOException("Unsupported node size " + nodeSize + " in " + niFile);
+            }
+
+            ByteBuffer chunk = ByteBuffer.allocate(nodeSize * VISIT_CHUNK_RECORDS).order(ByteOrder.LITTLE_ENDIAN);
+            NodeRecord node = new NodeRecord();
+            int visited = 0;
+            while (visited < stageNodesCount) {
+                int records = Math.min(VISIT_CHUNK_RECORDS, stageNodesCount - visited);
+                chunk.clear();
+                chunk.limit(records * nodeSize);
+                readFully(channel, chunk, nodesList + (long) visited * nodeSize);
+                span.addBytes(chunk.position());
+                int available = chunk.position() / nodeSize;
+                for (int i=0; i<available; i++) {
+                    decodeNodeRecord(chunk, i*nodeSize, visited, node);
+                    visited++;
+                    if (!visitor.visitNode(node)) {
+                        return visited;
+                    }
                 }
-                okTransition = new Transition(null, (short) okTransitionSelectedOptionIndex);
-                List<Transition> twa = transitionsWithAction.getOrDefault(okTransitionActionNodeIndexInLI, new ArrayList<>());
-                twa.add(okTransition);
-                transitionsWithAction.put(okTransitionActionNodeIndexInLI, twa);
-            }
-            Transition homeTransition = null;
-            if (homeTransitionActionNodeIndexInLI != -1 && homeTransitionNumberOfOptions != -1 && homeTransitionSelectedOptionIndex != -1) {
-                if (!actionNodesOptionsCount.containsKey(homeTransitionActionNodeIndexInLI)) {
-                    actionNodesOptionsCount.put(homeTransitionActionNodeIndexInLI, homeTransitionNumberOfOptions);
+                if (available < records) {
+                    throw new IOException("Truncated node index: expected " + stageNodesCount + " nodes, found " + visited);
                 }
-                homeTransition = new Transition(null, (short) homeTransitionSelectedOptionIndex);
-                List<Transition> twa = transitionsWithAction.getOrDefault(homeTransitionActionNodeIndexInLI, new ArrayList<>());
-                twa.add(homeTransition);
-                transitionsWithAction.put(homeTransitionActionNodeIndexInLI, twa);
             }
+            return visited;
+        }
+    }
 
-            // Read Image and audio assets
-            ImageAsset image = null;
-            if (imageAssetIndexInRI != -1) {
-                // Read image path
-                byte[] imagePath = Arrays.copyOfRange(riContent, imageAssetIndexInRI*12, imageAssetIndexInRI*12+12);   // Each entry takes 12 bytes
-                String path = new String(imagePath, StandardCharsets.UTF_8);
+    public String[] readImagePaths(File packFolder) throws IOException {
+        // 'ri' table only (paths relative to 'rf/'), to resolve the image indices of visited records
+        byte[] riContent = readFile(new File(packFolder, IMAGE_INDEX_FILENAME).toPath(), isCleartext(packFolder, false));
+        return readAssetPaths(riContent, riContent.length/12);
+    }
+
+    public String[] readSoundPaths(File packFolder) throws IOException {
+        // 'si' table only (paths relative to 'sf/'), to resolve the sound indices of visited records
+        byte[] siContent = readFile(new File(packFolder, SOUND_INDEX_FILENAME).toPath(), isCleartext(packFolder, false));
+        return readAssetPaths(siContent, siContent.length/12);
+    }
+
+    private static String[] readAssetPaths(byte[] indexContent, int count) {
+        // Each entry takes 12 bytes, e.g. "000\00000001" for rf/000/00000001
+        String[] paths = new String[Math.min(count, indexContent.length/12)];
+        for (int i=0; i<paths.length; i++) {
+            paths[i] = new String(indexContent, i*12, 12, StandardCharsets.UTF_8).replace('\\', '/');
+        }
+        return paths;
+    }
+
+    @SuppressWarnings("try")
+    public StoryPack read(File packFolder) throws IOException {
+        try (Tracer.Span span = Tracer.begin("read", packFolder)) {
+            return toStoryPack(readCompact(packFolder), packFolder);
+        }
+    }
+
+    public StoryPack toStoryPack(CompactStoryPack pack, File packFolder) throws IOException {
+        return toStoryPack(pack, folderAssets(packFolder));
+    }
+
+    @SuppressWarnings("try")
+    StoryPack toStoryPack(CompactStoryPack pack, AssetFactory assets) throws IOException {
+        try (Tracer.Span span = Tracer.begin("toStoryPack", pack.getUuid())) {
+            return buildStoryPack(pack, assets);
+        }
+    }
+
+    private AssetFactory folderAssets(File packFolder) {
+        return new AssetFactory() {
+            @Override
+            public ImageAsset createImage(CompactStoryPack pack, int index) throws IOException {
+                Path f = new File(packFolder, IMAGE_FOLDER + pack.getImagePaths()[index]).toPath();
+                if (lazyImages) {
+                    return new LazyImageAsset("image/bmp", f, pack.isCleartext(), pack.getUuid(), index);
+                }
                 // Read image file
-                byte[] rfContent = readFile(new File(packFolder, IMAGE_FOLDER+path.replaceAll("\\\\", "/")).toPath(), isCleartext);
-                image = new ImageAsset("image/bmp", rfContent);
+                return new ImageAsset("image/bmp", readFile(f, pack.isCleartext()));
+            }
+
+            @Override
+            public AudioAsset createSound(CompactStoryPack pack, int index) {
+                return new AudioAsset("audio/mpeg", new File(packFolder, SOUND_FOLDER + pack.getSoundPaths()[index]).toPath());
+            }
+        };
+    }
+
+    private StoryPack buildStoryPack(CompactStoryPack pack, AssetFactory assets) throws IOException {
+        int stageNodesCount = pack.getNodeCount();
+        StageNode[] stageNodes = new StageNode[stageNodesCount];
+        Transition[] okTransitions = new Transition[stageNodesCount];      // Transitions must be updated with the actual ActionNode
+        Transition[] homeTransitions = new Transition[stageNodesCount];
+        ImageAsset[] images = new ImageAsset[pack.getImagePaths().length];
+        AudioAsset[] sounds = new AudioAsset[pack.getSoundPaths().length];
+        ActionNodeTable actionNodes = new ActionNodeTable(pack.getListIndex(), stageNodes);
+
+        for (int i=0; i<stageNodesCount; i++) {
+            // Transition will be updated later with the actual action nodes (or on first access when lazy)
+            if (pack.getOkActionOffset(i) != -1) {
+                okTransitions[i] = transition(actionNodes, pack.getOkActionOffset(i), pack.getOkOptionCount(i), pack.getOkOptionIndex(i));
+            }
+            if (pack.getHomeActionOffset(i) != -1) {
+                homeTransitions[i] = transition(actionNodes, pack.getHomeActionOffset(i), pack.getHomeOptionCount(i), pack.getHomeOptionIndex(i));
+            }
+
+            // Read Image and audio assets (nodes sharing an index share the same asset)
+            ImageAsset image = null;
+            int imageIndex = pack.getImageIndex(i);
+            if (imageIndex < -1 || imageIndex >= images.length) {
+                throw new IOException("Node " + i + " references image " + imageIndex + ", 'ri' has " + images.length);
+            }
+            if (imageIndex != -1) {
+                if (images[imageIndex] == null) {
+                    images[imageIndex] = assets.createImage(pack, imageIndex);
+                }
+                image = images[imageIndex];
             }
             AudioAsset audio = null;
-            if (soundAssetIndexInSI != -1) {
-                // Read audio path
-                byte[] audioPath = Arrays.copyOfRange(siContent, soundAssetIndexInSI*12, soundAssetIndexInSI*12+12);    // Each entry takes 12 bytes
-                String path = new String(audioPath, StandardCharsets.UTF_8);
-                // Read audio file
-                Path f = new File(packFolder, SOUND_FOLDER+path.replaceAll("\\\\", "/")).toPath();
-                audio = new AudioAsset("audio/mpeg", f);
+            int soundIndex = pack.getSoundIndex(i);
+            if (soundIndex < -1 || soundIndex >= sounds.length) {
+                throw new IOException("Node " + i + " references sound " + soundIndex + ", 'si' has " + sounds.length);
+            }
+            if (soundIndex != -1) {
+                if (sounds[soundIndex] == null) {
+                    sounds[soundIndex] = assets.createSound(pack, soundIndex);
+                }
+                audio = sounds[soundIndex];
             }
 
-            StageNode stageNode = new StageNode(
-                    i == 0 ? uuid : UUID.randomUUID().toString(), // First node should have the same UUID as the story pack FIXME node uuids from metadata file
+            int controls = pack.getControls(i);
+            stageNodes[i] = new StageNode(
+                    pack.getUuid(), // Node uuid is derived from the pack uuid and the index on first access
+                    i,
                     image,
                     audio,
-                    okTransition,
-                    homeTransition,
+                    okTransitions[i],
+                    homeTransitions[i],
                     new ControlSettings(
-                            wheel,
-                            ok,
-                            home,
-                            pause,
-                            autoplay
+                            (controls & CompactStoryPack.CONTROL_WHEEL) != 0,
+                            (controls & CompactStoryPack.CONTROL_OK) != 0,
+                            (controls & CompactStoryPack.CONTROL_HOME) != 0,
+                            (controls & CompactStoryPack.CONTROL_PAUSE) != 0,
+                            (controls & CompactStoryPack.CONTROL_AUTOJUMP) != 0
                     )
             );
-            stageNodes.put(i, stageNode);
         }
 
-        niDis.close();
-        niFis.close();
-
-        // Read action nodes from 'li' file
-        ByteBuffer liBb = ByteBuffer.wrap(liContent).order(ByteOrder.LITTLE_ENDIAN);
-        for (Map.Entry<Integer, Integer> actionCount: actionNodesOptionsCount.entrySet()) {
-            Integer offset = actionCount.getKey();
-            Integer count = actionCount.getValue();
-            List<StageNode> options = new ArrayList<>(count);
-            liBb.position(offset*4);    // Each entry takes 4 bytes
-            for (int i=0; i<count; i++) {
-                int stageNodeIndex = liBb.getInt();
-                options.add(stageNodes.get(stageNodeIndex));
+        if (!lazyTransitions) {
+            // Build action nodes from 'li' table, one per offset and options count
+            for (int i=0; i<stageNodesCount; i++) {
+                if (okTransitions[i] != null) {
+                    okTransitions[i].setActionNode(actionNodes.get(pack.getOkActionOffset(i), pack.getOkOptionCount(i)));
+                }
+                if (homeTransitions[i] != null) {
+                    homeTransitions[i].setActionNode(actionNodes.get(pack.getHomeActionOffset(i), pack.getHomeOptionCount(i)));
+                }
             }
-            // Update action on transitions referencing this sector
-            ActionNode actionNode = new ActionNode(options);
-            transitionsWithAction.get(offset).forEach(transition -> transition.setActionNode(actionNode));
         }
 
-        return new StoryPack(uuid, factoryDisabled, version, List.copyOf(stageNodes.values()), nightModeAvailable);
+        return new StoryPack(pack.getUuid(), pack.isFactoryDisabled(), pack.getVersion(), Arrays.asList(stageNodes), pack.isNightModeAvailable());
+    }
+
+    private Transition transition(ActionNodeTable actionNodes, int offset, int count, int optionIndex) throws IOException {
+        // List bounds are checked upfront in both modes, targets when the action node is built
+        actionNodes.checkBounds(offset, count);
+        if (lazyTransitions) {
+            return new LazyTransition(actionNodes, offset, count, (short) optionIndex);
+        }
+        return new Transition(null, (short) optionIndex);
     }
 
     public boolean isCleartext(File packFolder, boolean fixBrokenCleartext) throws IOException {
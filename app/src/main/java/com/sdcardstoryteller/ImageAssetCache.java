@@ -0,0 +1,137 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of deciphered image assets, keyed by (pack uuid, index in 'ri').
+ * Data is kept off-heap in direct buffers, and least recently used entries are evicted when the
+ * byte budget is exceeded.
+ */
+public class ImageAssetCache {
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private static final ImageAssetCache INSTANCE = new ImageAssetCache(DEFAULT_MAX_BYTES);
+
+    public static ImageAssetCache getInstance() {
+        return INSTANCE;
+    }
+
+    private static class Key {
+
+        private final String packUuid;
+        private final int index;
+
+        Key(String packUuid, int index) {
+            this.packUuid = packUuid;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return index == other.index && packUuid.equals(other.packUuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return packUuid.hashCode() * 31 + index;
+        }
+    }
+
+    // Access-ordered: iteration starts with the least recently used entry
+    private final LinkedHashMap<Key, ByteBuffer> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long maxBytes;
+    private long currentBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    public ImageAssetCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized byte[] get(String packUuid, int index) {
+        ByteBuffer buffer = entries.get(new Key(packUuid, index));
+        if (buffer == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        byte[] data = new byte[buffer.capacity()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    public synchronized void put(String packUuid, int index, byte[] data) {
+        if (data.length > maxBytes) {
+            // Would evict everything else and still not fit
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        ByteBuffer previous = entries.put(new Key(packUuid, index), buffer);
+        if (previous != null) {
+            currentBytes -= previous.capacity();
+        }
+        currentBytes += data.length;
+        trimTo(maxBytes);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    private void trimTo(long bytes) {
+        Iterator<Map.Entry<Key, ByteBuffer>> it = entries.entrySet().iterator();
+        while (currentBytes > bytes && it.hasNext()) {
+            currentBytes -= it.next().getValue().capacity();
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimTo(maxBytes);
+    }
+
+    public synchronized long getSize() {
+        // Bytes currently held
+        return currentBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized String toString() {
+        return "ImageAssetCache{size: " + currentBytes + "/" + maxBytes + " entries: " + entries.size()
+                + " hits: " + hitCount + " misses: " + missCount + " evictions: " + evictionCount + "}";
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.ImageAsset;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+/**
+ * Image asset which only keeps the resolved path of its 'rf/' file: the file is read (and
+ * deciphered) on first call to getRawData(), so that opening a pack doesn't depend on the total
+ * size of its images.
+ */
+public class LazyImageAsset extends ImageAsset {
+
+    private final Path path;
+    private final boolean cleartext;
+    private final String packUuid;
+    private final int index;
+    private final long offset;
+    private final long length;
+    private boolean releaseAfterRead;
+
+    public LazyImageAsset(String mimeType, Path path, boolean cleartext) {
+        this(mimeType, path, cleartext, null, -1);
+    }
+
+    public LazyImageAsset(String mimeType, Path path, boolean cleartext, String packUuid, int index) {
+        this(mimeType, path, cleartext, packUuid, index, 0, -1);
+    }
+
+    public LazyImageAsset(String mimeType, Path path, boolean cleartext, String packUuid, int index, long offset, long length) {
+        // When pack uuid and index in 'ri' are known, data is shared through ImageAssetCache instead of being kept here.
+        // Data is the whole file, or 'length' bytes at 'offset' (asset stored inside a disk image or an archive)
+        super(mimeType, null);
+        this.path = path;
+        this.cleartext = cleartext;
+        this.packUuid = packUuid;
+        this.index = index;
+        this.offset = offset;
+        this.length = length;
+        this.releaseAfterRead = packUuid != null;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public boolean isCleartext() {
+        return cleartext;
+    }
+
+    public String getPackUuid() {
+        return packUuid;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        // -1 for the whole file
+        return length;
+    }
+
+    public boolean isReleaseAfterRead() {
+        return releaseAfterRead;
+    }
+
+    public void setReleaseAfterRead(boolean releaseAfterRead) {
+        // Set by default for cached images (their data lives in ImageAssetCache, the heap keeps no copy).
+        // Callers which need the data kept here whatever the cache evicts opt in by clearing it
+        this.releaseAfterRead = releaseAfterRead;
+    }
+
+    public boolean isLoaded() {
+        return super.getRawData() != null;
+    }
+
+    @Override
+    public synchronized byte[] getRawData() {
+        byte[] rawData = super.getRawData();
+        if (rawData != null) {
+            return rawData;
+        }
+        if (packUuid != null) {
+            rawData = ImageAssetCache.getInstance().get(packUuid, index);
+        }
+        if (rawData == null) {
+            try {
+                rawData = readData();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read image asset " + path, e);
+            }
+            if (packUuid != null) {
+                ImageAssetCache.getInstance().put(packUuid, index, rawData);
+            }
+        }
+        if (!releaseAfterRead) {
+            super.setRawData(rawData);
+        }
+        return rawData;
+    }
+
+    protected byte[] readData() throws IOException {
+        // Deciphered data of the asset
+        return length < 0
+                ? FsStoryPackReader.readFile(path, cleartext)
+                : FsStoryPackReader.readRegion(path, offset, (int) length, cleartext);
+    }
+
+    public synchronized void release() {
+        super.setRawData(null);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.ActionNode;
+import com.sdcardstoryteller.model.Transition;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Transition which only keeps its offset in 'li' and its options count: the action node is built
+ * on first call to getActionNode(), so that opening a pack doesn't depend on the number of
+ * branches, only on the ones which are actually visited. A broken 'li' entry is then only found
+ * when its transition is followed (UncheckedIOException).
+ */
+public class LazyTransition extends Transition {
+
+    private final ActionNodeTable table;
+    private final int listOffset;
+    private final int optionCount;
+
+    LazyTransition(ActionNodeTable table, int listOffset, int optionCount, short optionIndex) {
+        super(null, optionIndex);
+        this.table = table;
+        this.listOffset = listOffset;
+        this.optionCount = optionCount;
+    }
+
+    public int getListOffset() {
+        return listOffset;
+    }
+
+    public int getOptionCount() {
+        return optionCount;
+    }
+
+    @Override
+    public int getTargetIndex() {
+        // Read from 'li' directly, without building the action node
+        return table.getTargetIndex(listOffset, optionCount, getOptionIndex());
+    }
+
+    public synchronized boolean isResolved() {
+        return super.getActionNode() != null;
+    }
+
+    @Override
+    public synchronized ActionNode getActionNode() {
+        ActionNode actionNode = super.getActionNode();
+        if (actionNode == null) {
+            // Action nodes are shared: transitions to the same offset resolve to the same instance
+            try {
+                actionNode = table.get(listOffset, optionCount);
+            } catch (IOException e) {
+                // Broken 'li' entry, only found when the transition is followed
+                throw new UncheckedIOException(e);
+            }
+            super.setActionNode(actionNode);
+        }
+        return actionNode;
+    }
+
+    @Override
+    public synchronized void setActionNode(ActionNode actionNode) {
+        super.setActionNode(actionNode);
+    }
+}
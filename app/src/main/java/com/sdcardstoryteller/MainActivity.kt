@@ -6,9 +6,10 @@
 
 package com.sdcardstoryteller
 
+import android.app.ActivityManager
 import android.content.Intent
+import android.content.pm.ApplicationInfo
 import android.graphics.BitmapFactory
-import android.media.MediaPlayer
 import android.net.Uri
 import android.os.Build
 import android.os.Bundle
@@ -20,24 +21,44 @@ import androidx.annotation.RequiresApi
 import androidx.compose.foundation.ExperimentalFoundationApi
 import androidx.compose.foundation.Image
 import androidx.compose.foundation.combinedClickable
+import androidx.compose.foundation.rememberScrollState
 import androidx.compose.foundation.layout.Column
+import androidx.compose.foundation.layout.Spacer
 import androidx.compose.foundation.layout.fillMaxSize
 import androidx.compose.foundation.layout.size
-import androidx.compose.foundation.rememberScrollState
+import androidx.compose.foundation.lazy.LazyColumn
+import androidx.compose.foundation.lazy.items
+import androidx.compose.foundation.lazy.rememberLazyListState
 import androidx.compose.foundation.verticalScroll
 import androidx.compose.material3.Button
 import androidx.compose.material3.Surface
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.DisposableEffect
+import androidx.compose.runtime.LaunchedEffect
+import androidx.compose.runtime.mutableStateListOf
+import androidx.compose.runtime.getValue
+import androidx.compose.runtime.mutableStateMapOf
+import androidx.compose.runtime.produceState
+import androidx.compose.runtime.remember
+import androidx.compose.runtime.snapshotFlow
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.graphics.Color
+import androidx.compose.ui.graphics.ImageBitmap
+import androidx.compose.ui.graphics.asAndroidBitmap
 import androidx.compose.ui.graphics.asImageBitmap
 import androidx.compose.ui.graphics.painter.BitmapPainter
+import androidx.compose.ui.platform.LocalDensity
 import androidx.compose.ui.unit.dp
 import com.sdcardstoryteller.model.StageNode
-import com.sdcardstoryteller.model.StoryPack
 import com.sdcardstoryteller.ui.theme.SDCardStoryTellerTheme
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
 import java.io.File
+import java.io.IOException
+
+// Options decoded ahead of the visible ones, in both directions
+private const val PREFETCH_ITEMS = 2
 
 fun getSubStringBeforeLastMark(str: String, mark: String?): String {
     val l = str.lastIndexOf(mark!!)
@@ -45,20 +66,55 @@ fun getSubStringBeforeLastMark(str: String, mark: String?): String {
 }
 
 class MainActivity : ComponentActivity() {
+    // Most played packs are mirrored to internal storage, within an eighth of its free space (1 GB at most)
+    private val tiers by lazy {
+        PackTierManager(File(noBackupFilesDir, "mirror"), minOf(noBackupFilesDir.usableSpace / 8, 1024L * 1024L * 1024L))
+    }
+    private val scanner by lazy {
+        PackLibraryScanner(FsStoryPackReader(true, true), StoryGraphCache(File(noBackupFilesDir, "graphs")), tiers)
+    }
+    private var currentPack: String? = null
+    private val packs = mutableStateListOf<PackLibraryScanner.Result>()
+    private var scanGeneration = 0
+    private var expectedPacks = 0
+    private var receivedPacks = 0
+    val playback = PlaybackEngine()
+    val menuImages by lazy { MenuImagePreparer(BitmapCache.getInstance()) }
+    val libraryImages by lazy { MenuImagePreparer(BitmapCache.getInstance()) }
+    // Placeholder of the options without image, decoded once
+    val noImage by lazy { BitmapFactory.decodeResource(resources, R.drawable.no_image).asImageBitmap() }
+
     @RequiresApi(Build.VERSION_CODES.R)
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
+        // Pack loading is traced in debuggable builds only
+        Tracer.setEnabled(applicationInfo.flags and ApplicationInfo.FLAG_DEBUGGABLE != 0)
+        // Give decrypted images an eighth of the memory class of the device
+        val am = getSystemService(ActivityManager::class.java)
+        ImageAssetCache.getInstance().maxBytes = am.memoryClass * 1024L * 1024L / 8
+        // Deciphered asset headers of the packs being played, indexed once per pack in background
+        AssetHeaderSidecar.getInstance().folder = File(noBackupFilesDir, "headers")
         reloadStories()
     }
     @RequiresApi(Build.VERSION_CODES.R)
     fun changeStage(node : StageNode) {
         println("changeStage ${node.uuid}")
+        if (node.packUuid != null && node.packUuid != currentPack) {
+            // Entering a pack from the library counts as one play
+            currentPack = node.packUuid
+            tiers.recordPlay(node.packUuid)
+        }
+        // Only the audio the new stage starts by itself (menus and stories) may keep playing
+        playback.keepOnly(if (node.image == null) node.audio else null)
+        menuImages.cancel()
+        libraryImages.cancel()
         setContent {
             SDCardStoryTellerTheme {
+                // Menus scroll by themselves (lazily): a lazy list can't be nested in a scrollable surface
                 Surface(
                     modifier= Modifier
                         .fillMaxSize()
-                        .verticalScroll(state = rememberScrollState()) ,
+                        .then(if (isMenu(node)) Modifier else Modifier.verticalScroll(state = rememberScrollState())),
                     color = Color.Transparent //MaterialTheme.colorScheme.background
                 ) {
                     PlayNode(node = node, activity = this)
@@ -68,54 +124,119 @@ class MainActivity : ComponentActivity() {
     }
     @RequiresApi(Build.VERSION_CODES.R)
     fun reloadStories() {
-        val ctx = this
+        // Packs are parsed in background, results are streamed into 'packs' as soon as they are ready
+        scanner.cancel()
+        playback.stop()
+        menuImages.cancel()
+        libraryImages.cancel()
+        currentPack = null
+        packs.clear()
+        Tracer.clear()
+        val generation = ++scanGeneration
+        expectedPacks = 0
+        receivedPacks = 0
+        val contentPaths = ArrayList<File>()
+        for(dir in getExternalFilesDirs(null)) {
+            val path = File(getSubStringBeforeLastMark(dir.absolutePath,"/Android/") +
+                            File.separator + ".content")
+            println("Searching on $path")
+            if (path.exists()) {
+                println("Found content on $path")
+                contentPaths.add(path)
+            }
+        }
+        val hasAccess = Environment.isExternalStorageManager()
+        var listable = true
+        if (hasAccess) {
+            for (path in contentPaths) {
+                val count = scanner.scan(path) { result ->
+                    runOnUiThread {
+                        if (generation == scanGeneration) {
+                            // Keep listing order whatever the completion order
+                            val pos = packs.indexOfFirst { it.index > result.index }
+                            if (pos < 0) packs.add(result) else packs.add(pos, result)
+                            if (++receivedPacks == expectedPacks) {
+                                dumpStartupTrace()
+                            }
+                        }
+                    }
+                }
+                if (count < 0) {
+                    listable = false
+                } else {
+                    expectedPacks += count
+                }
+            }
+            if (listable && contentPaths.isNotEmpty()) {
+                // Graphs of the previous scan are gone: mirrors no graph can use anymore are deleted
+                tiers.sweep(contentPaths.flatMap { it.list()?.asList() ?: emptyList() })
+            }
+        }
         setContent {
             SDCardStoryTellerTheme {
                 Surface(modifier= Modifier
-                    .fillMaxSize()
-                    .verticalScroll(state = rememberScrollState()),
+                    .fillMaxSize(),
                     color = Color.Transparent
                 ) {
-                    var contentfound = false
-                    for(dir in getExternalFilesDirs(null)) {
-                        val path = File(getSubStringBeforeLastMark(dir.absolutePath,"/Android/") +
-                                        File.separator + ".content")
-                        println("Searching on $path")
-                        if (path.exists()) {
-                            println("Found content on $path")
-                            contentfound = true
-                            if (Environment.isExternalStorageManager()) {
-                                val files: Array<out File>? = path.listFiles()
-                                if (files == null) {
-                                    Text(getString(R.string.empty_content), color = Color.Yellow)
-                                } else {
-                                    Column() {
+                    if (contentPaths.isNotEmpty()) {
+                        if (hasAccess) {
+                            if (!listable) {
+                                Text(getString(R.string.empty_content), color = Color.Yellow)
+                            } else {
+                                // Only visible packs are composed, their images (and a few around them) are decoded in background
+                                val width = with(LocalDensity.current) { 320.dp.roundToPx() }
+                                val height = with(LocalDensity.current) { 240.dp.roundToPx() }
+                                val listState = rememberLazyListState()
+                                val images = remember { mutableStateMapOf<StageNode, ImageBitmap>() }
+                                LaunchedEffect(Unit) {
+                                    // Packs are streamed in: options are taken again whenever a pack is added,
+                                    // pending decodes of the options still in the window are kept by the preparer
+                                    var options: List<StageNode?> = emptyList()
+                                    var window: Set<StageNode> = emptySet()
+                                    snapshotFlow {
+                                        // Item 0 is the how-to text, pack i is item i+1
+                                        val visible = listState.layoutInfo.visibleItemsInfo
+                                        val first = if (visible.isEmpty()) 0 else maxOf(0, visible.first().index - 1)
+                                        val last = if (visible.isEmpty()) 0 else maxOf(0, visible.last().index - 1)
+                                        Triple(first, last, packs.size)
+                                    }.collect { (first, last, count) ->
+                                        if (options.size != count) {
+                                            options = packs.map { it.pack?.getNode(0) }
+                                        }
+                                        val from = maxOf(0, first - PREFETCH_ITEMS)
+                                        val to = minOf(count, last + 1 + PREFETCH_ITEMS)
+                                        window = options.subList(from, to).filterNotNull().toSet()
+                                        images.keys.retainAll { it in window }
+                                        libraryImages.prepare(options, from, to, width, height) { _, node, bitmap ->
+                                            runOnUiThread {
+                                                if (node in window) {
+                                                    images[node] = bitmap.asImageBitmap()
+                                                }
+                                            }
+                                        }
+                                    }
+                                }
+                                LazyColumn(state = listState) {
+                                    item {
                                         Text(
                                             getString(R.string.howto_use_the_app),
                                             color = Color.White
                                         )
-                                        for (file in files) {
-                                            Story(file, activity = ctx)
-                                        }
                                     }
-                                }
-                            } else {
-                                Column() {
-                                    Text(getString(R.string.need_sdcard_access), color=Color.White)
-                                    Button(onClick = { reloadStories() }) {
-                                        Text(getString(R.string.retry))
+                                    items(packs, key = { it.folder.path }) { result ->
+                                        Story(result, activity = this@MainActivity, image = result.pack?.let { images[it.getNode(0)] })
                                     }
                                 }
-                                val intent = Intent()
-                                intent.action =
-                                    Settings.ACTION_MANAGE_APP_ALL_FILES_ACCESS_PERMISSION
-                                val uri = Uri.fromParts("package", this.packageName, null)
-                                intent.data = uri
-                                startActivity(intent)
+                            }
+                        } else {
+                            Column() {
+                                Text(getString(R.string.need_sdcard_access), color=Color.White)
+                                Button(onClick = { reloadStories() }) {
+                                    Text(getString(R.string.retry))
+                                }
                             }
                         }
-                    }
-                    if (!contentfound) {
+                    } else {
                         Column() {
                             Text(getString(R.string.insert_sdcard_with_compatible_content), color=Color.White)
                             Button(onClick = { reloadStories() }) {
@@ -126,97 +247,157 @@ class MainActivity : ComponentActivity() {
                 }
             }
         }
+        if (contentPaths.isNotEmpty() && !hasAccess) {
+            val intent = Intent()
+            intent.action =
+                Settings.ACTION_MANAGE_APP_ALL_FILES_ACCESS_PERMISSION
+            val uri = Uri.fromParts("package", this.packageName, null)
+            intent.data = uri
+            startActivity(intent)
+        }
+    }
+
+    private fun dumpStartupTrace() {
+        // Timeline of the library scan, to open in chrome://tracing or Perfetto
+        if (!Tracer.isEnabled()) {
+            return
+        }
+        val file = File(getExternalFilesDir(null), "startup-trace.json")
+        try {
+            Tracer.writeChromeTrace(file)
+            println("Startup trace written to $file")
+        } catch (e: IOException) {
+            println("Cannot write startup trace: $e")
+        }
+    }
+
+    override fun onDestroy() {
+        scanner.shutdown()
+        tiers.shutdown()
+        playback.release()
+        menuImages.shutdown()
+        libraryImages.shutdown()
+        super.onDestroy()
     }
 }
 
 @RequiresApi(Build.VERSION_CODES.R)
 @OptIn(ExperimentalFoundationApi::class)
 @Composable
-fun PlayNode(node : StageNode, activity: MainActivity, forceMenuItem: Boolean = false)  {
+fun PlayNode(node : StageNode, activity: MainActivity, forceMenuItem: Boolean = false, image: ImageBitmap? = null)  {
     // Option: display image and play sound on click, change stage on long click
     if ((forceMenuItem)||((node.image!=null)&&(node.audio!=null))) {
         println("Play one option ${node.uuid} -> ${node.okTransition.actionNode.options[0].uuid}")
-        val bmp = if (node.image!=null) {
-            BitmapFactory.decodeByteArray(node.image.rawData, 0, node.image.rawData.size)
-                .asImageBitmap()
-        } else {
-            BitmapFactory.decodeResource(activity.resources, R.drawable.no_image).asImageBitmap()
+        val width = with(LocalDensity.current) { 320.dp.roundToPx() }
+        val height = with(LocalDensity.current) { 240.dp.roundToPx() }
+        // Menu options and library packs are decoded in background by their image preparer,
+        // other options decode their image themselves, off the main thread too
+        val decoded by produceState(
+            initialValue = if (node.image == null) activity.noImage else BitmapCache.getInstance().peek(node.image)?.asImageBitmap(),
+            node.image
+        ) {
+            if (value == null && !forceMenuItem) {
+                value = withContext(Dispatchers.IO) {
+                    BitmapCache.getInstance().get(node.image, width, height)?.asImageBitmap()
+                }
+            }
+        }
+        val bmp = image ?: decoded
+        if (bmp == null) {
+            // Keep the layout stable until the image is ready
+            Spacer(modifier = Modifier.size(320.dp, 240.dp))
+            return
+        }
+        // Hold the bitmap while it is displayed, so that the cache doesn't decode another image into it
+        DisposableEffect(bmp) {
+            val bitmap = bmp.asAndroidBitmap()
+            BitmapCache.getInstance().acquire(bitmap)
+            onDispose { BitmapCache.getInstance().release(bitmap) }
         }
         Image(painter = BitmapPainter(bmp), contentDescription = "Option ${node.uuid}", modifier = Modifier
             .combinedClickable(
                 onClick = {
-                    val mediaSource = AudioAssetMediaDataSource(node.audio)
-                    MediaPlayer().apply {
-                        setDataSource(mediaSource)
-                        setOnCompletionListener { release() }
-                        prepareAsync()
-                        setOnPreparedListener { start() }
+                    if (node.audio != null) {
+                        activity.playback.play(node.audio, null)
                     }
                 },
                 onLongClick = {
                     println("long click on ${node.uuid}")
-                    activity.changeStage(node.okTransition.actionNode.options[0])
+                    // Packs starting with a menu or a story (no image) open on that stage itself
+                    activity.changeStage(if (node.image == null) node else node.okTransition.actionNode.options[0])
                 }
             )
             .size(320.dp, 240.dp))
     } 
     // Menu: display options
-    else if(node.image==null && node.audio!=null && !node.controlSettings.isPauseEnabled) {
+    else if(isMenu(node)) {
         println("Play options of ${node.uuid}")
-        Column {
-            for (opt in node.okTransition.actionNode.options) {
-                PlayNode(node = opt, activity, forceMenuItem = true)
-            }
-            Button(onClick = {
-                if (node.homeTransition != null) {
-                    activity.changeStage(node.homeTransition.actionNode.options[0])
-                } else {
-                    activity.reloadStories()
+        val options = node.okTransition.actionNode.options
+        val width = with(LocalDensity.current) { 320.dp.roundToPx() }
+        val height = with(LocalDensity.current) { 240.dp.roundToPx() }
+        // Option images are published as soon as they are decoded, visible options (and a few around them)
+        // being decoded concurrently. Images of options which scroll away are released
+        val listState = rememberLazyListState()
+        // Images are kept by option, as decodes are: an option listed twice shares its image
+        val images = remember(node) { mutableStateMapOf<StageNode, ImageBitmap>() }
+        LaunchedEffect(node) {
+            var window: Set<StageNode> = emptySet()
+            snapshotFlow {
+                val visible = listState.layoutInfo.visibleItemsInfo
+                if (visible.isEmpty()) Pair(0, 0) else Pair(visible.first().index, visible.last().index)
+            }.collect { (first, last) ->
+                val from = maxOf(0, first - PREFETCH_ITEMS)
+                val to = minOf(options.size, last + 1 + PREFETCH_ITEMS)
+                window = options.subList(from, to).toSet()
+                images.keys.retainAll { it in window }
+                activity.menuImages.prepare(options, from, to, width, height) { _, option, bitmap ->
+                    activity.runOnUiThread {
+                        if (option in window) {
+                            images[option] = bitmap.asImageBitmap()
+                        }
+                    }
                 }
-            }) {
+            }
+        }
+        LazyColumn(state = listState) {
+            items(options) { opt ->
+                PlayNode(node = opt, activity, forceMenuItem = true, image = images[opt])
+            }
+            item {
+                Button(onClick = {
+                    if (node.homeTransition != null) {
+                        activity.changeStage(node.homeTransition.actionNode.options[0])
+                    } else {
+                        activity.reloadStories()
+                    }
+                }) {
                     Text(activity.getString(R.string.back))
                 }
+            }
         }
-        val mediaSource = AudioAssetMediaDataSource(node.audio)
-        MediaPlayer().apply {
-            setDataSource(mediaSource)
-            setOnCompletionListener { release() }
-            prepareAsync()
-            setOnPreparedListener { start() }
+        LaunchedEffect(node) {
+            activity.playback.play(node.audio, null)
         }
     }
     // Story
     else if(node.image==null && node.audio!=null && node.controlSettings.isPauseEnabled) {
         Column {
             Text(activity.getString(R.string.playing_story)+" (uuid:${node.uuid})", color=Color.White)
-            val mediaSource = AudioAssetMediaDataSource(node.audio)
-            val mp = MediaPlayer()
-            mp.apply {
-                setDataSource(mediaSource)
-                setOnCompletionListener { release() }
-                prepareAsync()
-                setOnPreparedListener { start() }
-                if (node.controlSettings.isAutoJumpEnabled) {
-                    setOnCompletionListener {
-                        if (node.okTransition != null) {
-                            activity.changeStage(node.okTransition.actionNode.options[0])
-                        }
+            LaunchedEffect(node) {
+                activity.playback.play(node.audio) {
+                    if (node.controlSettings.isAutoJumpEnabled && node.okTransition != null) {
+                        activity.changeStage(node.okTransition.actionNode.options[0])
                     }
                 }
+                preloadNext(node, activity)
             }
             Button(onClick = {
-                if (mp.isPlaying) {
-                    mp.pause()
-                } else {
-                    mp.start()
-                }
+                activity.playback.togglePause()
             }) {
                 Text(activity.getString(R.string.pause_resume))
             }
             Button(onClick = {
-                if (mp.isPlaying) {
-                    mp.stop()
-                }
+                activity.playback.stop()
                 if (node.homeTransition != null) {
                     activity.changeStage(node.homeTransition.actionNode.options[0])
                 } else {
@@ -227,9 +408,7 @@ fun PlayNode(node : StageNode, activity: MainActivity, forceMenuItem: Boolean =
             }
             if (node.controlSettings.isOkEnabled) {
                 Button(onClick = {
-                    if (mp.isPlaying) {
-                        mp.stop()
-                    }
+                    activity.playback.stop()
                     if (node.okTransition != null) {
                         activity.changeStage(node.okTransition.actionNode.options[0])
                     }
@@ -244,18 +423,30 @@ fun PlayNode(node : StageNode, activity: MainActivity, forceMenuItem: Boolean =
     }
 }
 
+fun isMenu(node: StageNode) = node.image == null && node.audio != null && !node.controlSettings.isPauseEnabled
+
+fun preloadNext(node: StageNode, activity: MainActivity) {
+    // Look-ahead for auto-jump: prepare the audio of the next stage while this one plays
+    if (node.controlSettings.isAutoJumpEnabled && node.okTransition != null) {
+        val next = node.okTransition.actionNode.options[0]
+        // Only stages which start their audio by themselves (menus and stories)
+        if (next.image == null && next.audio != null) {
+            activity.playback.preloadNext(next.audio)
+        }
+    }
+}
+
 @RequiresApi(Build.VERSION_CODES.R)
 @Composable
-fun Story(dir: File, activity: MainActivity) {
-    val reader = FsStoryPackReader()
-    val storyPack = try {
-        reader.read(dir)
-    } catch (e: Throwable) {
-        Text("Cannot load $dir : $e", color= Color.Yellow)
-        StoryPack.EMPTY
-    }
-    if (storyPack != StoryPack.EMPTY) {
-        PlayNode(node = storyPack.stageNodes[0], activity)
+fun Story(result: PackLibraryScanner.Result, activity: MainActivity, image: ImageBitmap? = null) {
+    val storyPack = result.pack
+    if (storyPack == null) {
+        Text("Cannot load ${result.folder} : ${result.error}", color= Color.Yellow)
+    } else {
+        // Packs are the options of the library: their image is prepared by the library list
+        val node = storyPack.getNode(0)
+        // Always shown as an item: a menu's list can't be nested in the library's
+        PlayNode(node = node, activity, forceMenuItem = true, image = image)
         // uncomment to dump a story
         //Text("story ${storyPack.uuid}",color=Color.White)
         //if (storyPack.uuid=="8D871110") {
@@ -0,0 +1,140 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import android.graphics.Bitmap;
+
+import com.sdcardstoryteller.model.StageNode;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads, deciphers and decodes the option images of a menu concurrently on a bounded worker pool,
+ * instead of one after the other while the menu is composed. Options are submitted in display
+ * order, so the first ones are ready first, and each image is handed to the listener as soon as it
+ * is decoded.
+ * A menu may be prepared by windows (the visible options and a few around them): moving the window
+ * drops the pending decodes which fell out of it. Pending decodes are tracked by option, so a list
+ * rebuilt with the same options (e.g. a library growing while it is scanned) keeps them.
+ * Decodes which are cancelled, or dropped from the window, while running are not handed to the
+ * listener.
+ */
+public class MenuImagePreparer {
+
+    public interface Listener {
+        // Called on a worker thread, or on the caller thread for images already in the cache.
+        // Must not block: it is called while the preparer is locked
+        void onImageReady(int position, StageNode option, Bitmap bitmap);
+    }
+
+    private static final Logger LOG = Logger.getLogger(MenuImagePreparer.class.getName());
+
+    private final BitmapCache cache;
+    private final ExecutorService executor;
+    private final Map<StageNode, Future<?>> pending = new IdentityHashMap<>();
+    // Incremented by cancel(), so that decodes started before are not handed to the listener
+    private long generation = 0;
+
+    public MenuImagePreparer(BitmapCache cache) {
+        this(cache, Runtime.getRuntime().availableProcessors());
+    }
+
+    public MenuImagePreparer(BitmapCache cache, int threads) {
+        this.cache = cache;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "menu-images-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public synchronized void prepare(List<StageNode> options, int targetWidth, int targetHeight, Listener listener) {
+        // Replaces the menu being prepared: images of the previous one which are not started yet are dropped
+        prepare(options, 0, options.size(), targetWidth, targetHeight, listener);
+    }
+
+    @SuppressWarnings("try")
+    public synchronized void prepare(List<StageNode> options, int from, int to, int targetWidth, int targetHeight, Listener listener) {
+        // Prepares options [from, to) only, decodes already pending for these options are kept
+        from = Math.max(0, from);
+        to = Math.min(to, options.size());
+        Set<StageNode> window = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i=from; i<to; i++) {
+            window.add(options.get(i));
+        }
+        Iterator<Map.Entry<StageNode, Future<?>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<StageNode, Future<?>> entry = it.next();
+            if (!window.contains(entry.getKey()) || entry.getValue().isDone()) {
+                entry.getValue().cancel(false);
+                it.remove();
+            }
+        }
+        for (int i=from; i<to; i++) {
+            StageNode option = options.get(i);
+            int position = i;
+            // Null options (e.g. unreadable packs of the library) have nothing to prepare
+            if (option == null || option.getImage() == null || pending.containsKey(option)) {
+                continue;
+            }
+            Bitmap cached = cache.peek(option.getImage());
+            if (cached != null) {
+                listener.onImageReady(position, option, cached);
+                continue;
+            }
+            long submitted = generation;
+            pending.put(option, executor.submit(() -> {
+                Bitmap bitmap;
+                try (Tracer.Span span = Tracer.begin("prepareMenuImage", option.getUuid())) {
+                    bitmap = cache.get(option.getImage(), targetWidth, targetHeight);
+                } catch (RuntimeException e) {
+                    // Unreadable image: the option keeps its placeholder
+                    LOG.log(Level.WARNING, "Cannot prepare image of option " + option.getUuid(), e);
+                    return;
+                }
+                if (bitmap != null) {
+                    synchronized (this) {
+                        if (submitted == generation && pending.containsKey(option)) {
+                            listener.onImageReady(position, option, bitmap);
+                        }
+                    }
+                }
+            }));
+        }
+    }
+
+    public synchronized void cancel() {
+        // Running decodes complete normally (their bitmap stays in the cache)
+        for (Future<?> future : pending.values()) {
+            future.cancel(false);
+        }
+        pending.clear();
+        generation++;
+    }
+
+    public void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.StoryPack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists the pack folders (and zipped packs) of a '.content' folder and parses them concurrently
+ * on a bounded worker pool. Each result (pack or error) is handed to the listener, on a worker
+ * thread, as soon as it is ready.
+ */
+public class PackLibraryScanner {
+
+    public interface Listener {
+        void onResult(Result result);
+    }
+
+    public static class Result {
+
+        private final File folder;
+        private final int index;
+        private final StoryPack pack;
+        private final Throwable error;
+
+        public Result(File folder, int index, StoryPack pack, Throwable error) {
+            this.folder = folder;
+            this.index = index;
+            this.pack = pack;
+            this.error = error;
+        }
+
+        public File getFolder() {
+            return folder;
+        }
+
+        public int getIndex() {
+            // Listing order, to display packs in a stable order whatever the completion order
+            return index;
+        }
+
+        public StoryPack getPack() {
+            return pack;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final FsStoryPackReader reader;
+    private final StoryGraphCache cache;
+    private final PackTierManager tiers;
+    private final List<Future<?>> pending = new ArrayList<>();
+    private final AtomicInteger submitted = new AtomicInteger();
+
+    public PackLibraryScanner(FsStoryPackReader reader, StoryGraphCache cache) {
+        this(reader, cache, null);
+    }
+
+    public PackLibraryScanner(FsStoryPackReader reader, StoryGraphCache cache, PackTierManager tiers) {
+        this(reader, cache, tiers, Runtime.getRuntime().availableProcessors());
+    }
+
+    public PackLibraryScanner(FsStoryPackReader reader, StoryGraphCache cache, PackTierManager tiers, int threads) {
+        // Cache is optional (null to always parse index files), and so are tiers (null to always read from the card)
+        this.reader = reader;
+        this.cache = cache;
+        this.tiers = tiers;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pack-scanner-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @SuppressWarnings("try")
+    public int scan(File contentFolder, Listener listener) {
+        // Returns the number of packs being parsed, -1 if the folder can't be listed
+        File[] files;
+        try (Tracer.Span span = Tracer.begin("listPacks", contentFolder)) {
+            files = contentFolder.listFiles();
+            span.addFiles(files == null ? 0 : files.length);
+        }
+        if (files == null) {
+            return -1;
+        }
+        int count = 0;
+        synchronized (pending) {
+            // Only futures of packs still being parsed are kept, so rescans don't pile them up
+            pending.removeIf(Future::isDone);
+            for (File file : files) {
+                if (!file.isDirectory() && !isArchive(file)) {
+                    continue;
+                }
+                int index = submitted.getAndIncrement();
+                pending.add(executor.submit(() -> {
+                    Result result;
+                    try (Tracer.Span span = Tracer.begin("scanPack", file)) {
+                        result = new Result(file, index, read(file), null);
+                    } catch (Throwable e) {
+                        result = new Result(file, index, null, e);
+                    }
+                    listener.onResult(result);
+                }));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isArchive(File file) {
+        return file.isFile() && file.getName().toLowerCase(Locale.ROOT).endsWith(".zip");
+    }
+
+    private StoryPack read(File packFolder) throws IOException {
+        if (!packFolder.isDirectory()) {
+            // Zipped pack, read in place
+            try (ArchiveStoryPackReader archiveReader = ArchiveStoryPackReader.open(packFolder.toPath(), reader)) {
+                return archiveReader.read();
+            }
+        }
+        if (tiers != null) {
+            // Mirrored copy of the pack if there is an up-to-date one
+            packFolder = tiers.resolve(packFolder);
+        }
+        if (cache == null) {
+            return reader.read(packFolder);
+        }
+        return reader.toStoryPack(cache.read(packFolder, reader), packFolder);
+    }
+
+    public void cancel() {
+        // Drops packs which are not parsed yet, running parses complete normally
+        synchronized (pending) {
+            for (Future<?> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+            submitted.set(0);
+        }
+    }
+
+    public void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+}
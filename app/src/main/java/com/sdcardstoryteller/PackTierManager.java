@@ -0,0 +1,464 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Two-tier pack storage: packs are read from the SD card, and the most played ones are copied
+ * verbatim (same files, same format) into a byte-bounded mirror in app-private storage, whose
+ * random reads are much faster. resolve() gives the folder to read a pack from: the mirror when it
+ * holds an up-to-date copy, the card otherwise.
+ *
+ * Play counts, last play times and the card fingerprint (StoryGraphCache.fingerprint) of each
+ * mirrored pack are kept in a state file. A mirror whose card pack has changed since the copy is
+ * dropped. When the budget is exceeded, least recently played packs are demoted; their files are
+ * only deleted on the next resolve() of their pack or the next sweep() (when the library is
+ * scanned again), since graphs built before may still read them. sweep() also forgets packs which
+ * are no longer on the card, and deletes their mirror. Copies and deletions run on a single
+ * background thread.
+ */
+public class PackTierManager {
+
+    private static final int MAGIC = 0x53545452;   // "STTR"
+    private static final int FORMAT_VERSION = 1;
+    private static final String STATE_FILENAME = "tiers.state";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final Logger LOG = Logger.getLogger(PackTierManager.class.getName());
+
+    public static final int DEFAULT_PROMOTE_AFTER_PLAYS = 3;
+
+    private static class PackState {
+
+        private final String name;
+        private int plays;
+        private long lastPlayed;
+        private long bytes;                 // Size of the mirrored copy, 0 if not mirrored
+        private long[] fingerprint;         // Card fingerprint when copied, null if not mirrored
+        private boolean demoted;            // Mirror to delete on next resolve
+        private boolean promoting;
+        private File cardFolder;            // Known once resolved during this run
+
+        private PackState(String name) {
+            this.name = name;
+        }
+
+        private boolean isMirrored() {
+            return fingerprint != null && !demoted;
+        }
+    }
+
+    private final File mirrorFolder;
+    private final Map<String, PackState> packs = new HashMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "pack-tiers");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+    private long maxBytes;
+    private int promoteAfterPlays = DEFAULT_PROMOTE_AFTER_PLAYS;
+    private boolean loaded = false;
+
+    public PackTierManager(File mirrorFolder, long maxBytes) {
+        this.mirrorFolder = mirrorFolder;
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        // Takes effect on next promotion
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void setPromoteAfterPlays(int promoteAfterPlays) {
+        this.promoteAfterPlays = promoteAfterPlays;
+    }
+
+    public synchronized long getUsedBytes() {
+        load();
+        long used = 0;
+        for (PackState state : packs.values()) {
+            used += state.bytes;
+        }
+        return used;
+    }
+
+    public synchronized boolean isMirrored(String name) {
+        load();
+        PackState state = packs.get(name);
+        return state != null && state.isMirrored();
+    }
+
+    public File resolve(File cardFolder) {
+        // Folder to read the pack from, pack folders keep their name in the mirror (it is the pack uuid)
+        String name = cardFolder.getName();
+        File mirror = new File(mirrorFolder, name);
+        PackState state;
+        long[] mirrored;
+        synchronized (this) {
+            load();
+            state = packs.get(name);
+            if (state == null) {
+                state = new PackState(name);
+                packs.put(name, state);
+            }
+            state.cardFolder = cardFolder;
+            if (state.promoting) {
+                return cardFolder;
+            }
+            mirrored = state.isMirrored() ? state.fingerprint : null;
+        }
+        // Card files are checked out of the lock, packs are resolved concurrently by the scanner
+        if (mirrored != null && Arrays.equals(mirrored, StoryGraphCache.fingerprint(cardFolder))) {
+            return mirror;
+        }
+        synchronized (this) {
+            if (state.promoting) {
+                return cardFolder;
+            }
+            // Demoted, or changed on the card since copied: the card is the only valid copy
+            state.fingerprint = null;
+            state.bytes = 0;
+            state.demoted = false;
+        }
+        if (mirror.exists() && !executor.isShutdown()) {
+            // Deleted on the copy thread, so that it never races with a promotion of the same pack
+            executor.execute(() -> dropMirror(name));
+        }
+        return cardFolder;
+    }
+
+    @SuppressWarnings("try")
+    private void dropMirror(String name) {
+        synchronized (this) {
+            PackState state = packs.get(name);
+            if (state != null && state.isMirrored()) {
+                // Promoted again meanwhile
+                return;
+            }
+        }
+        try (Tracer.Span span = Tracer.begin("dropMirror", name)) {
+            deleteRecursively(new File(mirrorFolder, name).toPath());
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot delete mirror of " + name, e);
+        }
+        save();
+    }
+
+    public void sweep(Collection<String> cardPacks) {
+        // Called when the library is scanned again (graphs of the previous scan are gone) with the names of
+        // all the packs on the card: mirrors which are demoted, unknown, or of a pack no longer on the card
+        // are deleted, and the state of packs no longer on the card is dropped
+        Set<String> present = new HashSet<>(cardPacks);
+        if (!executor.isShutdown()) {
+            executor.execute(() -> sweepMirrors(present));
+        }
+    }
+
+    @SuppressWarnings("try")
+    private void sweepMirrors(Set<String> present) {
+        synchronized (this) {
+            load();
+            Iterator<PackState> it = packs.values().iterator();
+            while (it.hasNext()) {
+                PackState state = it.next();
+                if (!present.contains(state.name) && !state.promoting) {
+                    it.remove();
+                }
+            }
+        }
+        File[] mirrors = mirrorFolder.listFiles(File::isDirectory);
+        if (mirrors != null) {
+            for (File mirror : mirrors) {
+                String name = mirror.getName();
+                synchronized (this) {
+                    // Up-to-date copies, and copies being made, are kept (pack names have no '.tmp' suffix)
+                    PackState state = packs.get(name.endsWith(TMP_SUFFIX) ? name.substring(0, name.length() - TMP_SUFFIX.length()) : name);
+                    if (state != null && (state.promoting || (state.isMirrored() && !name.endsWith(TMP_SUFFIX)))) {
+                        continue;
+                    }
+                    if (state != null && state.demoted) {
+                        state.fingerprint = null;
+                        state.demoted = false;
+                    }
+                }
+                try (Tracer.Span span = Tracer.begin("dropMirror", name)) {
+                    deleteRecursively(mirror.toPath());
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Cannot delete mirror " + mirror, e);
+                }
+            }
+        }
+        save();
+    }
+
+    public void recordPlay(String name) {
+        // Called when a pack is opened, promotes it in background once played often enough
+        boolean promote;
+        synchronized (this) {
+            load();
+            PackState state = packs.get(name);
+            if (state == null) {
+                state = new PackState(name);
+                packs.put(name, state);
+            }
+            state.plays++;
+            state.lastPlayed = System.currentTimeMillis();
+            promote = state.cardFolder != null && !state.isMirrored() && !state.promoting && state.plays >= promoteAfterPlays;
+            if (promote) {
+                state.promoting = true;
+            }
+        }
+        if (executor.isShutdown()) {
+            return;
+        }
+        if (promote) {
+            executor.execute(() -> promote(name));
+        } else {
+            saveInBackground();
+        }
+    }
+
+    private void promote(String name) {
+        PackState state;
+        File cardFolder;
+        long[] fingerprint;
+        long size;
+        synchronized (this) {
+            state = packs.get(name);
+            cardFolder = state.cardFolder;
+        }
+        File mirror = new File(mirrorFolder, name);
+        File tmp = new File(mirrorFolder, name + TMP_SUFFIX);
+        try (Tracer.Span span = Tracer.begin("promotePack", name)) {
+            // Fingerprint is taken before the copy, so that a pack modified meanwhile is never seen as up-to-date
+            fingerprint = StoryGraphCache.fingerprint(cardFolder);
+            size = folderSize(cardFolder.toPath());
+            span.addBytes(size);
+            if (!makeRoom(name, size)) {
+                return;
+            }
+            deleteRecursively(tmp.toPath());
+            deleteRecursively(mirror.toPath());
+            copyRecursively(cardFolder.toPath(), tmp.toPath());
+            if (!Arrays.equals(fingerprint, StoryGraphCache.fingerprint(cardFolder))) {
+                throw new IOException("Pack changed on the card while being copied");
+            }
+            Files.move(tmp.toPath(), mirror.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                state.fingerprint = fingerprint;
+                state.bytes = size;
+                state.demoted = false;
+            }
+            save();
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Cannot promote " + name, e);
+            try {
+                deleteRecursively(tmp.toPath());
+            } catch (IOException ignored) {
+            }
+        } finally {
+            synchronized (this) {
+                state.promoting = false;
+            }
+        }
+    }
+
+    private synchronized boolean makeRoom(String name, long size) {
+        // Demotes least recently played packs until the new one fits, false if it can't fit at all
+        if (size > maxBytes) {
+            return false;
+        }
+        List<PackState> mirrored = new ArrayList<>();
+        long used = 0;
+        for (PackState state : packs.values()) {
+            used += state.bytes;
+            if (state.isMirrored() && !state.name.equals(name)) {
+                mirrored.add(state);
+            }
+        }
+        mirrored.sort((a, b) -> Long.compare(a.lastPlayed, b.lastPlayed));
+        for (PackState state : mirrored) {
+            if (used + size <= maxBytes) {
+                break;
+            }
+            // Space is accounted as free right away, files go on next resolve
+            state.demoted = true;
+            used -= state.bytes;
+            state.bytes = 0;
+        }
+        return used + size <= maxBytes;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void saveInBackground() {
+        if (!executor.isShutdown()) {
+            executor.execute(this::save);
+        }
+    }
+
+    private synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File file = new File(mirrorFolder, STATE_FILENAME);
+        if (!file.exists()) {
+            return;
+        }
+        try (Tracer.Span span = Tracer.begin("readTiers")) {
+            byte[] data = Files.readAllBytes(file.toPath());
+            span.addFiles(1).addBytes(data.length);
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            if (bb.getInt() != MAGIC || bb.getInt() != FORMAT_VERSION) {
+                return;
+            }
+            int count = bb.getInt();
+            for (int i=0; i<count; i++) {
+                byte[] name = new byte[bb.getShort() & 0xffff];
+                bb.get(name);
+                PackState state = new PackState(new String(name, StandardCharsets.UTF_8));
+                state.plays = bb.getInt();
+                state.lastPlayed = bb.getLong();
+                state.bytes = bb.getLong();
+                state.demoted = bb.get() != 0;
+                int fingerprintLength = bb.getInt();
+                if (fingerprintLength > 0) {
+                    state.fingerprint = new long[fingerprintLength];
+                    for (int j=0; j<fingerprintLength; j++) {
+                        state.fingerprint[j] = bb.getLong();
+                    }
+                }
+                packs.put(state.name, state);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Unreadable state: start over, mirrors without state are dropped on resolve
+            packs.clear();
+        }
+    }
+
+    private void save() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            DataOutputStream dos = new DataOutputStream(bos);
+            synchronized (this) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(FORMAT_VERSION);
+                dos.writeInt(packs.size());
+                for (PackState state : packs.values()) {
+                    byte[] name = state.name.getBytes(StandardCharsets.UTF_8);
+                    dos.writeShort(name.length);
+                    dos.write(name);
+                    dos.writeInt(state.plays);
+                    dos.writeLong(state.lastPlayed);
+                    dos.writeLong(state.bytes);
+                    dos.writeBoolean(state.demoted);
+                    dos.writeInt(state.fingerprint == null ? 0 : state.fingerprint.length);
+                    if (state.fingerprint != null) {
+                        for (long value : state.fingerprint) {
+                            dos.writeLong(value);
+                        }
+                    }
+                }
+            }
+            dos.flush();
+
+            // Write to a temporary file then rename, so that the state is never partially written
+            if (!mirrorFolder.isDirectory() && !mirrorFolder.mkdirs()) {
+                throw new IOException("Cannot create mirror folder " + mirrorFolder);
+            }
+            File tmp = File.createTempFile(STATE_FILENAME, TMP_SUFFIX, mirrorFolder);
+            try {
+                Files.write(tmp.toPath(), bos.toByteArray());
+                Files.move(tmp.toPath(), new File(mirrorFolder, STATE_FILENAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot save pack tiers", e);
+        }
+    }
+
+    private static long folderSize(Path folder) throws IOException {
+        long[] size = new long[1];
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                size[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+
+    private static void copyRecursively(Path source, Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                // Attributes are kept, so that the graph cache fingerprint is the same for both copies
+                Files.copy(file, target.resolve(source.relativize(file).toString()), StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void deleteRecursively(Path folder) throws IOException {
+        if (!Files.exists(folder)) {
+            return;
+        }
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import android.media.MediaPlayer;
+
+import com.sdcardstoryteller.model.AudioAsset;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single owner of the app's media players. Players are taken from a small pool and reused through
+ * reset(), only one audio plays at a time, and everything which is not the audio of the new stage
+ * is stopped deterministically on stage change.
+ * A look-ahead player can be prepared for the next stage: it is chained to the current one with
+ * setNextMediaPlayer(), so that auto-jump transitions are gapless.
+ */
+public class PlaybackEngine {
+
+    public enum State {
+        IDLE,
+        PREPARING,
+        PLAYING,
+        PAUSED
+    }
+
+    private static final int POOL_SIZE = 2;
+
+    private final List<MediaPlayer> pool = new ArrayList<>();
+
+    private MediaPlayer current = null;
+    private AudioAsset currentAsset = null;
+    private Runnable onCompletion = null;
+    private State state = State.IDLE;
+    private long prepareStartNanos = 0;
+    private long lastPrepareNanos = -1;
+    private Tracer.Span prepareSpan = null;
+
+    private MediaPlayer next = null;
+    private AudioAsset nextAsset = null;
+    private boolean nextPrepared = false;
+    private boolean nextChained = false;
+    private Tracer.Span nextPrepareSpan = null;
+
+    public synchronized void play(AudioAsset asset, Runnable onCompletion) {
+        // Completion callback is optional (null)
+        if (asset == currentAsset && state != State.IDLE) {
+            // Already playing (e.g. taken over from the look-ahead player, or recomposition)
+            this.onCompletion = onCompletion;
+            if (state == State.PAUSED) {
+                resume();
+            }
+            return;
+        }
+        stopCurrent();
+        this.onCompletion = onCompletion;
+        currentAsset = asset;
+        if (asset == nextAsset && next != null) {
+            // Take the look-ahead player over, and its prepare if it isn't done yet
+            // (preparing another player for the same asset would chain the clip after itself)
+            current = next;
+            boolean prepared = nextPrepared;
+            Tracer.Span span = nextPrepareSpan;
+            next = null;
+            nextAsset = null;
+            nextPrepared = false;
+            nextChained = false;
+            nextPrepareSpan = null;
+            listen(current);
+            if (prepared) {
+                current.start();
+                state = State.PLAYING;
+            } else {
+                state = State.PREPARING;
+                prepareSpan = span;
+                prepareStartNanos = System.nanoTime();
+            }
+            return;
+        }
+        current = obtain();
+        listen(current);
+        current.setDataSource(new AudioAssetMediaDataSource(asset));
+        state = State.PREPARING;
+        prepareSpan = Tracer.begin("prepareAudio", asset.getPath());
+        prepareStartNanos = System.nanoTime();
+        current.prepareAsync();
+    }
+
+    public synchronized void preloadNext(AudioAsset asset) {
+        if (asset == nextAsset) {
+            return;
+        }
+        dropNext();
+        nextAsset = asset;
+        next = obtain();
+        final MediaPlayer preloaded = next;
+        preloaded.setOnPreparedListener(mp -> onNextPrepared(preloaded));
+        preloaded.setOnCompletionListener(null);
+        preloaded.setDataSource(new AudioAssetMediaDataSource(asset));
+        nextPrepareSpan = Tracer.begin("prepareNextAudio", asset.getPath());
+        preloaded.prepareAsync();
+    }
+
+    private void listen(MediaPlayer player) {
+        player.setOnPreparedListener(mp -> onPrepared(player));
+        player.setOnCompletionListener(mp -> onCompleted(player));
+    }
+
+    private synchronized void onPrepared(MediaPlayer player) {
+        if (player != current || state != State.PREPARING) {
+            return;
+        }
+        lastPrepareNanos = System.nanoTime() - prepareStartNanos;
+        if (prepareSpan != null) {
+            prepareSpan.close();
+            prepareSpan = null;
+        }
+        player.start();
+        state = State.PLAYING;
+        chain();
+    }
+
+    private synchronized void onNextPrepared(MediaPlayer player) {
+        if (player != next) {
+            return;
+        }
+        nextPrepareSpan.close();
+        nextPrepareSpan = null;
+        nextPrepared = true;
+        chain();
+    }
+
+    private void chain() {
+        // Once both players are prepared, next one starts by itself when current one completes
+        if (current != null && next != null && nextPrepared && !nextChained && state != State.PREPARING && state != State.IDLE) {
+            try {
+                current.setNextMediaPlayer(next);
+                nextChained = true;
+            } catch (IllegalStateException e) {
+                // Current one already completed: next stage will start the look-ahead player itself
+            }
+        }
+    }
+
+    private void onCompleted(MediaPlayer player) {
+        Runnable callback;
+        synchronized (this) {
+            if (player != current) {
+                return;
+            }
+            callback = onCompletion;
+            onCompletion = null;
+            recycle(current);
+            if (nextChained) {
+                // Look-ahead player is already playing: it becomes the current one
+                current = next;
+                currentAsset = nextAsset;
+                state = State.PLAYING;
+                listen(current);
+                next = null;
+                nextAsset = null;
+                nextPrepared = false;
+                nextChained = false;
+            } else {
+                current = null;
+                currentAsset = null;
+                state = State.IDLE;
+            }
+        }
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    public synchronized void pause() {
+        if (state == State.PLAYING) {
+            current.pause();
+            state = State.PAUSED;
+        }
+    }
+
+    public synchronized void resume() {
+        if (state == State.PAUSED) {
+            current.start();
+            state = State.PLAYING;
+        }
+    }
+
+    public synchronized void togglePause() {
+        if (state == State.PLAYING) {
+            pause();
+        } else {
+            resume();
+        }
+    }
+
+    public synchronized void keepOnly(AudioAsset asset) {
+        // Called on stage change: stops everything but the audio of the new stage (null to stop everything)
+        if (asset != currentAsset) {
+            stopCurrent();
+        }
+        if (asset != nextAsset && asset != currentAsset) {
+            dropNext();
+        }
+    }
+
+    public synchronized void stop() {
+        stopCurrent();
+        dropNext();
+    }
+
+    private void stopCurrent() {
+        if (current != null) {
+            recycle(current);
+        }
+        current = null;
+        currentAsset = null;
+        onCompletion = null;
+        state = State.IDLE;
+        nextChained = false;
+        // Interrupted prepares are not recorded
+        prepareSpan = null;
+    }
+
+    private void dropNext() {
+        if (next != null) {
+            recycle(next);
+        }
+        next = null;
+        nextAsset = null;
+        nextPrepared = false;
+        nextChained = false;
+        nextPrepareSpan = null;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getLastPrepareNanos() {
+        return lastPrepareNanos;
+    }
+
+    public synchronized void release() {
+        // Releases every native player, the engine can still be used afterwards
+        stop();
+        for (MediaPlayer player : pool) {
+            player.release();
+        }
+        pool.clear();
+    }
+
+    private MediaPlayer obtain() {
+        if (!pool.isEmpty()) {
+            return pool.remove(pool.size() - 1);
+        }
+        return new MediaPlayer();
+    }
+
+    private void recycle(MediaPlayer player) {
+        player.setOnPreparedListener(null);
+        player.setOnCompletionListener(null);
+        // reset() also stops playback and unchains the next player
+        player.reset();
+        if (pool.size() < POOL_SIZE) {
+            pool.add(player);
+        } else {
+            player.release();
+        }
+    }
+}
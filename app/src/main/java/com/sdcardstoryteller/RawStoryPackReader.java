@@ -0,0 +1,279 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.AudioAsset;
+import com.sdcardstoryteller.model.ControlSettings;
+import com.sdcardstoryteller.model.ImageAsset;
+import com.sdcardstoryteller.model.StageNode;
+import com.sdcardstoryteller.model.StoryPack;
+import com.sdcardstoryteller.model.Transition;
+import com.sdcardstoryteller.model.metadata.StoryPackMetadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Reads packs from an SD card in the raw sector layout, either a block device or a disk image
+ * file. Every read is a whole number of sectors at a sector boundary, and each pack is loaded with
+ * a few large sequential reads (header, all stage nodes, all action nodes) instead of one file
+ * open per index and asset.
+ *
+ * Pack list at PACKS_LIST_SECTOR (big-endian): short packs count, then 12 bytes per pack: int start
+ * sector (relative to PACKS_LIST_SECTOR), int size in sectors, short stats offset, short sampling
+ * rate. The last sector of each pack holds CHECK_BYTES.
+ *
+ * Pack (sectors relative to its start sector):
+ *   header and enriched metadata (see BinaryEnrichedMetadataReader)
+ *   one sector per stage node (big-endian):
+ *     0   uuid (2 longs)
+ *     16  int image sector, int image size in sectors (-1 and 0 if none)
+ *     24  int audio sector, int audio size in sectors (-1 and 0 if none)
+ *     32  short ok action sector (relative to first stage node), short options count, short option index (-1 if none)
+ *     38  short home action sector, short options count, short option index (-1 if none)
+ *     44  5 shorts: wheel, ok, home, pause and autojump enabled
+ *   action nodes: for each, the stage node index (short) of every option, starting on its own sector
+ *   assets, sector-aligned: images (BMP) and audio (WAV), not ciphered
+ *   CHECK_BYTES
+ */
+public class RawStoryPackReader {
+
+    private static final int SHORTS_PER_SECTOR = Constants.SECTOR_SIZE / 2;
+    private static final int PACK_ENTRY_SIZE = 12;
+
+    public static class PackEntry {
+
+        private final int index;
+        private final long startSector;
+        private final int sizeInSectors;
+        private final short statsOffset;
+        private final short samplingRate;
+
+        public PackEntry(int index, long startSector, int sizeInSectors, short statsOffset, short samplingRate) {
+            this.index = index;
+            this.startSector = startSector;
+            this.sizeInSectors = sizeInSectors;
+            this.statsOffset = statsOffset;
+            this.samplingRate = samplingRate;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public long getStartSector() {
+            // Absolute sector in the image
+            return startSector;
+        }
+
+        public int getSizeInSectors() {
+            return sizeInSectors;
+        }
+
+        public short getStatsOffset() {
+            return statsOffset;
+        }
+
+        public short getSamplingRate() {
+            return samplingRate;
+        }
+    }
+
+    private final Path image;
+    private final BinaryEnrichedMetadataReader metadataReader = new BinaryEnrichedMetadataReader();
+
+    public RawStoryPackReader(Path image) {
+        this.image = image;
+    }
+
+    public List<PackEntry> readPackList() throws IOException {
+        try (Tracer.Span span = Tracer.begin("readPackList", image);
+             FileChannel channel = open()) {
+            span.addFiles(1);
+            ByteBuffer bb = readSectors(channel, Constants.PACKS_LIST_SECTOR, 1, span);
+            int count = bb.getShort(0) & 0xFFFF;
+            int sectors = sectorsFor(2 + count * PACK_ENTRY_SIZE);
+            if (sectors > 1) {
+                // Large libraries: the list goes on over the next sectors
+                bb = readSectors(channel, Constants.PACKS_LIST_SECTOR, sectors, span);
+            }
+            List<PackEntry> packs = new ArrayList<>(count);
+            for (int i=0; i<count; i++) {
+                int entry = 2 + i * PACK_ENTRY_SIZE;
+                packs.add(new PackEntry(i, Constants.PACKS_LIST_SECTOR + (bb.getInt(entry) & 0xFFFFFFFFL), bb.getInt(entry + 4),
+                        bb.getShort(entry + 8), bb.getShort(entry + 10)));
+            }
+            return packs;
+        }
+    }
+
+    public boolean isValid(PackEntry pack) throws IOException {
+        // Pack is complete if its last sector holds the check bytes
+        if (pack.getSizeInSectors() < 2) {
+            return false;
+        }
+        try (FileChannel channel = open()) {
+            ByteBuffer bb = ByteBuffer.allocate(Constants.SECTOR_SIZE);
+            FsStoryPackReader.readFully(channel, bb, (pack.getStartSector() + pack.getSizeInSectors() - 1) * Constants.SECTOR_SIZE);
+            return !bb.hasRemaining() && Arrays.equals(bb.array(), Constants.CHECK_BYTES);
+        }
+    }
+
+    public StoryPackMetadata readMetadata(PackEntry pack) throws IOException {
+        try (FileChannel channel = open()) {
+            StoryPackMetadata metadata = metadataReader.readMetadata(channel, pack.getStartSector(), pack.getSizeInSectors(), true);
+            metadata.setSectorSize(pack.getSizeInSectors());
+            return metadata;
+        }
+    }
+
+    public StoryPack read(PackEntry pack) throws IOException {
+        if (!isValid(pack)) {
+            throw new IOException("Invalid pack " + pack.getIndex() + " at sector " + pack.getStartSector() + ": check bytes not found");
+        }
+        try (Tracer.Span span = Tracer.begin("readRaw", pack.getStartSector());
+             FileChannel channel = open()) {
+            span.addFiles(1);
+            long start = pack.getStartSector();
+            ByteBuffer header = readSectors(channel, start, 1, span);
+            int stageNodesCount = header.getShort(0) & 0xFFFF;
+            boolean factoryDisabled = header.get(2) != 0x00;
+            short version = header.getShort(3);
+            int thumbnailSize = header.getInt(BinaryEnrichedMetadataReader.THUMBNAIL_SIZE_OFFSET);
+            BinaryEnrichedMetadataReader.checkThumbnailSize(thumbnailSize, start, pack.getSizeInSectors());
+            long firstNode = start + BinaryEnrichedMetadataReader.getHeaderSectors(thumbnailSize);
+            if (stageNodesCount == 0) {
+                throw new IOException("Pack at sector " + start + " has no stage node");
+            }
+
+            // All stage nodes in one sequential read
+            ByteBuffer nodes = readSectors(channel, firstNode, stageNodesCount, span);
+
+            // Action nodes follow the stage nodes: read the whole range they are in at once
+            int firstAction = Integer.MAX_VALUE;
+            int lastAction = -1;
+            for (int i=0; i<stageNodesCount; i++) {
+                int record = i * Constants.SECTOR_SIZE;
+                for (int transition = record + 32; transition <= record + 38; transition += 6) {
+                    int sector = nodes.getShort(transition);
+                    int count = nodes.getShort(transition + 2);
+                    if (sector >= 0 && count > 0) {
+                        firstAction = Math.min(firstAction, sector);
+                        lastAction = Math.max(lastAction, sector + sectorsFor(count * 2) - 1);
+                    }
+                }
+            }
+            int[] listIndex = new int[0];
+            if (lastAction >= 0) {
+                ByteBuffer actions = readSectors(channel, firstNode + firstAction, lastAction - firstAction + 1, span);
+                listIndex = new int[(lastAction - firstAction + 1) * SHORTS_PER_SECTOR];
+                for (int i=0; i<listIndex.length; i++) {
+                    listIndex[i] = actions.getShort(i * 2);
+                }
+            }
+
+            StageNode[] stageNodes = new StageNode[stageNodesCount];
+            ActionNodeTable actionNodes = new ActionNodeTable(listIndex, stageNodes);
+            Transition[] okTransitions = new Transition[stageNodesCount];
+            Transition[] homeTransitions = new Transition[stageNodesCount];
+            Map<Long, ImageAsset> images = new HashMap<>();
+            Map<Long, AudioAsset> sounds = new HashMap<>();
+            String packUuid = null;
+            for (int i=0; i<stageNodesCount; i++) {
+                int record = i * Constants.SECTOR_SIZE;
+                String uuid = new UUID(nodes.getLong(record), nodes.getLong(record + 8)).toString();
+                if (i == 0) {
+                    packUuid = uuid;
+                }
+                ImageAsset image = null;
+                int imageSector = nodes.getInt(record + 16);
+                if (imageSector >= 0) {
+                    // Nodes sharing a sector share the same asset
+                    long offset = (start + imageSector) * Constants.SECTOR_SIZE;
+                    image = images.get(offset);
+                    if (image == null) {
+                        image = new LazyImageAsset("image/bmp", this.image, true, packUuid, images.size(),
+                                offset, (long) nodes.getInt(record + 20) * Constants.SECTOR_SIZE);
+                        images.put(offset, image);
+                    }
+                }
+                AudioAsset audio = null;
+                int audioSector = nodes.getInt(record + 24);
+                if (audioSector >= 0) {
+                    long offset = (start + audioSector) * Constants.SECTOR_SIZE;
+                    audio = sounds.get(offset);
+                    if (audio == null) {
+                        audio = new AudioAsset("audio/x-wav", this.image, offset, (long) nodes.getInt(record + 28) * Constants.SECTOR_SIZE, false);
+                        sounds.put(offset, audio);
+                    }
+                }
+                okTransitions[i] = transition(actionNodes, nodes, record + 32, firstAction);
+                homeTransitions[i] = transition(actionNodes, nodes, record + 38, firstAction);
+
+                stageNodes[i] = new StageNode(uuid, image, audio, okTransitions[i], homeTransitions[i],
+                        new ControlSettings(
+                                nodes.getShort(record + 44) != 0,
+                                nodes.getShort(record + 46) != 0,
+                                nodes.getShort(record + 48) != 0,
+                                nodes.getShort(record + 50) != 0,
+                                nodes.getShort(record + 52) != 0
+                        ));
+                stageNodes[i].setIndex(i);
+            }
+            for (int i=0; i<stageNodesCount; i++) {
+                link(okTransitions[i], actionNodes, nodes, i * Constants.SECTOR_SIZE + 32, firstAction);
+                link(homeTransitions[i], actionNodes, nodes, i * Constants.SECTOR_SIZE + 38, firstAction);
+            }
+            return new StoryPack(packUuid, factoryDisabled, version, Arrays.asList(stageNodes), false);
+        }
+    }
+
+    private static Transition transition(ActionNodeTable actionNodes, ByteBuffer nodes, int field, int firstAction) throws IOException {
+        int sector = nodes.getShort(field);
+        int count = nodes.getShort(field + 2);
+        int optionIndex = nodes.getShort(field + 4);
+        if (sector < 0 || count <= 0 || optionIndex < 0) {
+            return null;
+        }
+        actionNodes.checkBounds((sector - firstAction) * SHORTS_PER_SECTOR, count);
+        return new Transition(null, (short) optionIndex);
+    }
+
+    private static void link(Transition transition, ActionNodeTable actionNodes, ByteBuffer nodes, int field, int firstAction) throws IOException {
+        if (transition != null) {
+            transition.setActionNode(actionNodes.get((nodes.getShort(field) - firstAction) * SHORTS_PER_SECTOR, nodes.getShort(field + 2)));
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(image, StandardOpenOption.READ);
+    }
+
+    private static ByteBuffer readSectors(FileChannel channel, long sector, int count, Tracer.Span span) throws IOException {
+        // Aligned read of whole sectors (block devices don't support anything else)
+        ByteBuffer bb = ByteBuffer.allocate(count * Constants.SECTOR_SIZE);
+        FsStoryPackReader.readFully(channel, bb, sector * Constants.SECTOR_SIZE);
+        span.addBytes(bb.position());
+        if (bb.hasRemaining()) {
+            throw new IOException("Unexpected end of image at sector " + (sector + bb.position() / Constants.SECTOR_SIZE));
+        }
+        return bb;
+    }
+
+    private static int sectorsFor(int bytes) {
+        return (bytes + Constants.SECTOR_SIZE - 1) / Constants.SECTOR_SIZE;
+    }
+}
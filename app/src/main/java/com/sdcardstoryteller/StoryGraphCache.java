@@ -0,0 +1,227 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.CompactStoryPack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Persistent cache of parsed story graphs (one binary file per pack, in app-private storage).
+ * Entries are keyed by pack uuid, and carry the size and modification time of the pack's index
+ * files: any change to the pack invalidates its entry. A hit costs one sequential read and no
+ * decryption.
+ */
+public class StoryGraphCache {
+
+    private static final int MAGIC = 0x53544743;   // "STGC"
+    private static final int FORMAT_VERSION = 1;
+    private static final String[] FINGERPRINT_FILES = { "ni", "li", "ri", "si", "nm", ".cleartext" };
+    private static final int NODE_RECORD_SIZE = 8 * 4 + 1;
+
+    private final File cacheFolder;
+
+    public StoryGraphCache(File cacheFolder) {
+        this.cacheFolder = cacheFolder;
+    }
+
+    public CompactStoryPack read(File packFolder, FsStoryPackReader reader) throws IOException {
+        // Fingerprint is taken before parsing, so that a pack modified meanwhile is never cached as up-to-date
+        long[] fingerprint = fingerprint(packFolder);
+        CompactStoryPack pack = get(packFolder.getName(), fingerprint);
+        if (pack == null) {
+            pack = reader.readCompact(packFolder);
+            try {
+                put(pack, fingerprint);
+            } catch (IOException e) {
+                // Cache is an optimization only (e.g. storage full): the pack is parsed again next time
+            }
+        }
+        return pack;
+    }
+
+    public static long[] fingerprint(File packFolder) {
+        // Size and modification time of each index file (0 and 0 if missing)
+        long[] fingerprint = new long[FINGERPRINT_FILES.length * 2];
+        for (int i=0; i<FINGERPRINT_FILES.length; i++) {
+            File f = new File(packFolder, FINGERPRINT_FILES[i]);
+            fingerprint[i*2] = f.length();
+            fingerprint[i*2+1] = f.lastModified();
+        }
+        return fingerprint;
+    }
+
+    public CompactStoryPack get(String uuid, long[] fingerprint) {
+        File entry = entryFile(uuid);
+        if (!entry.exists()) {
+            return null;
+        }
+        try (Tracer.Span span = Tracer.begin("readGraphCache", uuid)) {
+            byte[] data = Files.readAllBytes(entry.toPath());
+            span.addFiles(1).addBytes(data.length);
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            if (bb.getInt() != MAGIC || bb.getInt() != FORMAT_VERSION || bb.getInt() != fingerprint.length) {
+                return null;
+            }
+            for (long value : fingerprint) {
+                if (bb.getLong() != value) {
+                    return null;
+                }
+            }
+            return decode(bb);
+        } catch (IOException | RuntimeException e) {
+            // Unreadable or corrupted entry: same as a miss, it will be overwritten
+            return null;
+        }
+    }
+
+    public void put(CompactStoryPack pack, long[] fingerprint) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(MAGIC);
+        dos.writeInt(FORMAT_VERSION);
+        dos.writeInt(fingerprint.length);
+        for (long value : fingerprint) {
+            dos.writeLong(value);
+        }
+        encode(pack, dos);
+        dos.flush();
+
+        // Write to a temporary file then rename, so that a concurrent reader never sees a partial entry
+        if (!cacheFolder.isDirectory() && !cacheFolder.mkdirs()) {
+            throw new IOException("Cannot create cache folder " + cacheFolder);
+        }
+        File tmp = File.createTempFile(pack.getUuid(), ".tmp", cacheFolder);
+        try {
+            Files.write(tmp.toPath(), bos.toByteArray());
+            Files.move(tmp.toPath(), entryFile(pack.getUuid()).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    public void invalidate(String uuid) {
+        entryFile(uuid).delete();
+    }
+
+    private File entryFile(String uuid) {
+        return new File(cacheFolder, uuid + ".graph");
+    }
+
+    private static void encode(CompactStoryPack pack, DataOutputStream dos) throws IOException {
+        int count = pack.getNodeCount();
+        writeString(dos, pack.getUuid());
+        dos.writeBoolean(pack.isFactoryDisabled());
+        dos.writeShort(pack.getVersion());
+        dos.writeBoolean(pack.isNightModeAvailable());
+        dos.writeBoolean(pack.isCleartext());
+        dos.writeInt(count);
+        for (int i=0; i<count; i++) {
+            dos.writeInt(pack.getImageIndex(i));
+            dos.writeInt(pack.getSoundIndex(i));
+            dos.writeInt(pack.getOkActionOffset(i));
+            dos.writeInt(pack.getOkOptionCount(i));
+            dos.writeInt(pack.getOkOptionIndex(i));
+            dos.writeInt(pack.getHomeActionOffset(i));
+            dos.writeInt(pack.getHomeOptionCount(i));
+            dos.writeInt(pack.getHomeOptionIndex(i));
+            dos.writeByte(pack.getControls(i));
+        }
+        int[] listIndex = pack.getListIndex();
+        dos.writeInt(listIndex.length);
+        for (int value : listIndex) {
+            dos.writeInt(value);
+        }
+        writeStrings(dos, pack.getImagePaths());
+        writeStrings(dos, pack.getSoundPaths());
+    }
+
+    private static CompactStoryPack decode(ByteBuffer bb) throws IOException {
+        String uuid = readString(bb);
+        boolean factoryDisabled = bb.get() != 0;
+        short version = bb.getShort();
+        boolean nightModeAvailable = bb.get() != 0;
+        boolean cleartext = bb.get() != 0;
+        int count = readCount(bb, NODE_RECORD_SIZE);
+        int[] imageIndex = new int[count];
+        int[] soundIndex = new int[count];
+        int[] okActionOffset = new int[count];
+        int[] okOptionCount = new int[count];
+        int[] okOptionIndex = new int[count];
+        int[] homeActionOffset = new int[count];
+        int[] homeOptionCount = new int[count];
+        int[] homeOptionIndex = new int[count];
+        byte[] controls = new byte[count];
+        for (int i=0; i<count; i++) {
+            imageIndex[i] = bb.getInt();
+            soundIndex[i] = bb.getInt();
+            okActionOffset[i] = bb.getInt();
+            okOptionCount[i] = bb.getInt();
+            okOptionIndex[i] = bb.getInt();
+            homeActionOffset[i] = bb.getInt();
+            homeOptionCount[i] = bb.getInt();
+            homeOptionIndex[i] = bb.getInt();
+            controls[i] = bb.get();
+        }
+        int[] listIndex = new int[readCount(bb, 4)];
+        for (int i=0; i<listIndex.length; i++) {
+            listIndex[i] = bb.getInt();
+        }
+        String[] imagePaths = readStrings(bb);
+        String[] soundPaths = readStrings(bb);
+        return new CompactStoryPack(uuid, factoryDisabled, version, nightModeAvailable, cleartext,
+                imageIndex, soundIndex,
+                okActionOffset, okOptionCount, okOptionIndex,
+                homeActionOffset, homeOptionCount, homeOptionIndex,
+                controls, listIndex, imagePaths, soundPaths);
+    }
+
+    private static void writeString(DataOutputStream dos, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        dos.writeShort(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(ByteBuffer bb) {
+        int length = bb.getShort() & 0xffff;
+        String value = new String(bb.array(), bb.arrayOffset() + bb.position(), length, StandardCharsets.UTF_8);
+        bb.position(bb.position() + length);
+        return value;
+    }
+
+    private static void writeStrings(DataOutputStream dos, String[] values) throws IOException {
+        dos.writeInt(values.length);
+        for (String value : values) {
+            writeString(dos, value);
+        }
+    }
+
+    private static int readCount(ByteBuffer bb, int itemSize) throws IOException {
+        // Counts are checked against the remaining data before anything is allocated
+        int count = bb.getInt();
+        if (count < 0 || count > bb.remaining() / itemSize) {
+            throw new IOException("Corrupted graph cache entry: " + count + " items of " + itemSize + " bytes in " + bb.remaining());
+        }
+        return count;
+    }
+
+    private static String[] readStrings(ByteBuffer bb) throws IOException {
+        // Strings take 2 bytes at least (their length)
+        String[] values = new String[readCount(bb, 2)];
+        for (int i=0; i<values.length; i++) {
+            values[i] = readString(bb);
+        }
+        return values;
+    }
+}
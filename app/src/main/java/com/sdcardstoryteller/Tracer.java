@@ -0,0 +1,207 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lightweight tracing of pack loading: named spans with nanosecond timing, bytes read and files
+ * opened. When disabled (the default), begin() returns a shared no-op span and nothing is recorded.
+ * Recorded spans can be written as a Chrome trace (chrome://tracing, Perfetto) to get a timeline
+ * of each pack's startup.
+ */
+public class Tracer {
+
+    private static final int MAX_SPANS = 100000;
+
+    private static volatile boolean enabled = false;
+
+    private static final List<Span> spans = new ArrayList<>();
+    private static long dropped = 0;
+    private static final long origin = System.nanoTime();
+
+    public static class Span implements AutoCloseable {
+
+        private static final Span NOOP = new Span(null, null);
+
+        private final String name;
+        private final String target;
+        private final long threadId;
+        private final String threadName;
+        private final long startNanos;
+        private long durationNanos = -1;
+        private long bytes = 0;
+        private int files = 0;
+
+        private Span(String name, String target) {
+            this.name = name;
+            this.target = target;
+            if (name == null) {
+                this.threadId = 0;
+                this.threadName = null;
+                this.startNanos = 0;
+            } else {
+                Thread thread = Thread.currentThread();
+                this.threadId = thread.getId();
+                this.threadName = thread.getName();
+                this.startNanos = System.nanoTime();
+            }
+        }
+
+        public Span addBytes(long count) {
+            // No-op span is shared by all threads: never written
+            if (this != NOOP) {
+                bytes += count;
+            }
+            return this;
+        }
+
+        public Span addFiles(int count) {
+            if (this != NOOP) {
+                files += count;
+            }
+            return this;
+        }
+
+        @Override
+        public synchronized void close() {
+            // Spans may be closed from another thread (e.g. media player callbacks), only once
+            if (this == NOOP || durationNanos >= 0) {
+                return;
+            }
+            durationNanos = System.nanoTime() - startNanos;
+            record(this);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Tracer.enabled = enabled;
+    }
+
+    public static Span begin(String name) {
+        return begin(name, null);
+    }
+
+    public static Span begin(String name, Object target) {
+        // Target is optional (pack or file the span is about), it is only turned into a label when enabled
+        if (!enabled) {
+            return Span.NOOP;
+        }
+        return new Span(name, target == null ? null : target.toString());
+    }
+
+    public static Span begin(String name, long target) {
+        // Sectors and offsets: not boxed when disabled
+        if (!enabled) {
+            return Span.NOOP;
+        }
+        return new Span(name, String.valueOf(target));
+    }
+
+    private static synchronized void record(Span span) {
+        if (spans.size() >= MAX_SPANS) {
+            dropped++;
+            return;
+        }
+        spans.add(span);
+    }
+
+    public static synchronized List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    public static synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    public static synchronized void clear() {
+        spans.clear();
+        dropped = 0;
+    }
+
+    public static void writeChromeTrace(File file) throws IOException {
+        // Complete events ("ph": "X"), timestamps and durations in microseconds
+        List<Span> snapshot = getSpans();
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8))) {
+            w.write("{\"traceEvents\":[");
+            List<Long> namedThreads = new ArrayList<>();
+            boolean first = true;
+            for (Span span : snapshot) {
+                if (!namedThreads.contains(span.threadId)) {
+                    namedThreads.add(span.threadId);
+                    w.write(first ? "\n" : ",\n");
+                    first = false;
+                    w.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + span.threadId
+                            + ",\"args\":{\"name\":" + quote(span.threadName) + "}}");
+                }
+                w.write(",\n{\"name\":" + quote(span.name) + ",\"cat\":\"storyteller\",\"ph\":\"X\",\"pid\":1,\"tid\":" + span.threadId
+                        + ",\"ts\":" + micros(span.startNanos - origin) + ",\"dur\":" + micros(span.durationNanos)
+                        + ",\"args\":{\"bytes\":" + span.bytes + ",\"files\":" + span.files);
+                if (span.target != null) {
+                    w.write(",\"target\":" + quote(span.target));
+                }
+                w.write("}}");
+            }
+            w.write("\n]}\n");
+        }
+    }
+
+    private static String micros(long nanos) {
+        return (nanos / 1000) + "." + String.format("%03d", nanos % 1000);
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -6,15 +6,12 @@
 
 package com.sdcardstoryteller;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
 
 public class XXTEACipher {
 
@@ -22,14 +19,29 @@ public class XXTEACipher {
 
     private static final int DELTA = 0x9e3779b9;
 
+    public static final int HEADER_SIZE = 512;
+
+    private static final int HEADER_WORDS = HEADER_SIZE / 4;
+
+    // Key schedule of the common key, computed once (never exposed, so it can't be altered)
+    private static final int[] COMMON_KEY_SCHEDULE = toIntArray(COMMON_KEY, ByteOrder.BIG_ENDIAN);
+
+    // Per-thread scratch block, so that deciphering a header doesn't allocate
+    private static final ThreadLocal<int[]> HEADER_BLOCK = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[HEADER_WORDS];
+        }
+    };
+
     public static int[] toIntArray(byte[] data, ByteOrder endianness) {
         ByteBuffer bb = ByteBuffer.wrap(data);
         bb.order(endianness);
-        List<Integer> ints = new ArrayList<>();
-        for (int i=0; i<data.length/4; i++) {
-            ints.add(bb.getInt());
+        int[] ints = new int[data.length/4];
+        for (int i=0; i<ints.length; i++) {
+            ints[i] = bb.getInt();
         }
-        return ints.stream().mapToInt(i->i).toArray();
+        return ints;
     }
 
     public static byte[] toByteArray(int[] data, ByteOrder endianness) {
@@ -76,34 +88,67 @@ public class XXTEACipher {
         }
         return v;
     }
+    public static void decryptBlock(int[] v, int n) {
+        // Deciphers the n first words of v in place with the common key
+        btea(v, -n, COMMON_KEY_SCHEDULE);
+    }
+
+    public static void decryptHeader(ByteBuffer bb, int length) {
+        // Deciphers in place the header starting at bb's position, of an asset which is 'length' bytes long.
+        // Uses absolute reads and writes, so bb's position is left untouched
+        int n = Math.min(HEADER_WORDS, length/4);
+        try (Tracer.Span span = Tracer.begin("decryptHeader")) {
+            int[] v = HEADER_BLOCK.get();
+            int start = bb.position();
+            boolean swap = bb.order() != ByteOrder.LITTLE_ENDIAN;
+            for (int i=0; i<n; i++) {
+                int word = bb.getInt(start + i*4);
+                v[i] = swap ? Integer.reverseBytes(word) : word;
+            }
+            decryptBlock(v, n);
+            for (int i=0; i<n; i++) {
+                bb.putInt(start + i*4, swap ? Integer.reverseBytes(v[i]) : v[i]);
+            }
+            span.addBytes(n*4);
+        }
+    }
+
+    public static void decryptHeader(byte[] data, int offset, int length) {
+        // Same as above on an array, words are assembled by hand so that no buffer is wrapped around it
+        int n = Math.min(HEADER_WORDS, length/4);
+        try (Tracer.Span span = Tracer.begin("decryptHeader")) {
+            int[] v = HEADER_BLOCK.get();
+            for (int i=0, o=offset; i<n; i++, o+=4) {
+                v[i] = (data[o] & 0xff) | (data[o+1] & 0xff) << 8 | (data[o+2] & 0xff) << 16 | data[o+3] << 24;
+            }
+            decryptBlock(v, n);
+            for (int i=0, o=offset; i<n; i++, o+=4) {
+                int word = v[i];
+                data[o] = (byte) word;
+                data[o+1] = (byte) (word >>> 8);
+                data[o+2] = (byte) (word >>> 16);
+                data[o+3] = (byte) (word >>> 24);
+            }
+            span.addBytes(n*4);
+        }
+    }
+
     private static int mx(int[] k, int e, int p, int y, int z, int sum) {
         return (((z>>>5^y<<2) + (y>>>3^z<<4)) ^ ((sum^y) + (k[(p&3)^e] ^ z)));
     }
 
     public static byte[] readCipheredFile(Path path) throws IOException {
-        File f = new File(path.toString());
-        FileInputStream fs = new FileInputStream(f);
-        int datalen = (int)f.length();
-        ByteBuffer bb = ByteBuffer.allocate(datalen);
-        byte[] block = new byte[Math.min(512, datalen)];
-        //System.out.println("Before read");
-        int r = fs.read(block, 0, Math.min(512, datalen));
-        //System.out.println("After read "+r);
-        int[] dataInt = XXTEACipher.toIntArray(block, ByteOrder.LITTLE_ENDIAN);
-        int[] decryptedInt = XXTEACipher.btea(dataInt, -(Math.min(128, datalen/4)), XXTEACipher.toIntArray(XXTEACipher.COMMON_KEY, ByteOrder.BIG_ENDIAN));
-        byte[] decryptedBlock = XXTEACipher.toByteArray(decryptedInt, ByteOrder.LITTLE_ENDIAN);
-        //System.out.println("Block decrypted");
-        bb.put(decryptedBlock);
-        if (datalen>512) {
-            int n;
-            do {
-                n = fs.read(block,0,512);
-                if (n>0) {
-                    bb.put(Arrays.copyOfRange(block, 0, n));
-                }
-            } while(n>0);
+        // Bulk-read the whole file, then decipher the first block in place
+        byte[] data;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer bb = ByteBuffer.allocate((int) channel.size());
+            while (bb.hasRemaining() && channel.read(bb) >= 0) {
+            }
+            bb.flip();
+            decryptHeader(bb.order(ByteOrder.LITTLE_ENDIAN), bb.limit());
+            data = bb.array();
         }
-        return bb.array();
+        return data;
     }
 
 }
@@ -14,6 +14,11 @@ public class AudioAsset implements Asset {
 
     private Path path;
 
+    // Asset data is 'length' bytes at 'offset' of the file (-1 for the whole file)
+    private long offset = 0;
+    private long length = -1;
+    private boolean ciphered = true;
+
     public AudioAsset() {
     }
 
@@ -22,6 +27,14 @@ public class AudioAsset implements Asset {
         this.path = path;
     }
 
+    public AudioAsset(String mimeType, Path path, long offset, long length, boolean ciphered) {
+        this.mimeType = mimeType;
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+        this.ciphered = ciphered;
+    }
+
     public String getMimeType() {
         return mimeType;
     }
@@ -35,7 +48,31 @@ public class AudioAsset implements Asset {
     }
 
     public void setPath(Path path) {
-        path = path;
+        this.path = path;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public boolean isCiphered() {
+        return ciphered;
+    }
+
+    public void setCiphered(boolean ciphered) {
+        this.ciphered = ciphered;
     }
 
 }
@@ -0,0 +1,239 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller.model;
+
+/**
+ * Story pack graph kept in primitive arrays (one slot per stage node), as an alternative to the
+ * StageNode/Transition object web. Transitions keep their offset in the 'li' table, option count
+ * and selected option index, the 'li' table itself is kept as an int[].
+ * Nodes are browsed through a reusable NodeView flyweight.
+ */
+public class CompactStoryPack {
+
+    public static final int CONTROL_WHEEL = 1;
+    public static final int CONTROL_OK = 1 << 1;
+    public static final int CONTROL_HOME = 1 << 2;
+    public static final int CONTROL_PAUSE = 1 << 3;
+    public static final int CONTROL_AUTOJUMP = 1 << 4;
+
+    private final String uuid;
+    private final boolean factoryDisabled;
+    private final short version;
+    private final boolean nightModeAvailable;
+    private final boolean cleartext;
+
+    private final int[] imageIndex;         // Index in 'ri', -1 if none
+    private final int[] soundIndex;         // Index in 'si', -1 if none
+    private final int[] okActionOffset;     // Offset in 'li', -1 if no transition
+    private final int[] okOptionCount;
+    private final int[] okOptionIndex;
+    private final int[] homeActionOffset;   // Offset in 'li', -1 if no transition
+    private final int[] homeOptionCount;
+    private final int[] homeOptionIndex;
+    private final byte[] controls;          // CONTROL_* bits
+    private final int[] listIndex;          // 'li' table: stage node indices
+    private final String[] imagePaths;      // 'ri' table: paths relative to 'rf/'
+    private final String[] soundPaths;      // 'si' table: paths relative to 'sf/'
+
+    public CompactStoryPack(String uuid, boolean factoryDisabled, short version, boolean nightModeAvailable, boolean cleartext,
+                            int[] imageIndex, int[] soundIndex,
+                            int[] okActionOffset, int[] okOptionCount, int[] okOptionIndex,
+                            int[] homeActionOffset, int[] homeOptionCount, int[] homeOptionIndex,
+                            byte[] controls, int[] listIndex, String[] imagePaths, String[] soundPaths) {
+        this.uuid = uuid;
+        this.factoryDisabled = factoryDisabled;
+        this.version = version;
+        this.nightModeAvailable = nightModeAvailable;
+        this.cleartext = cleartext;
+        this.imageIndex = imageIndex;
+        this.soundIndex = soundIndex;
+        this.okActionOffset = okActionOffset;
+        this.okOptionCount = okOptionCount;
+        this.okOptionIndex = okOptionIndex;
+        this.homeActionOffset = homeActionOffset;
+        this.homeOptionCount = homeOptionCount;
+        this.homeOptionIndex = homeOptionIndex;
+        this.controls = controls;
+        this.listIndex = listIndex;
+        this.imagePaths = imagePaths;
+        this.soundPaths = soundPaths;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public boolean isFactoryDisabled() {
+        return factoryDisabled;
+    }
+
+    public short getVersion() {
+        return version;
+    }
+
+    public boolean isNightModeAvailable() {
+        return nightModeAvailable;
+    }
+
+    public boolean isCleartext() {
+        return cleartext;
+    }
+
+    public int getNodeCount() {
+        return imageIndex.length;
+    }
+
+    public int[] getListIndex() {
+        return listIndex;
+    }
+
+    public String[] getImagePaths() {
+        return imagePaths;
+    }
+
+    public String[] getSoundPaths() {
+        return soundPaths;
+    }
+
+    public int getImageIndex(int node) {
+        return imageIndex[node];
+    }
+
+    public int getSoundIndex(int node) {
+        return soundIndex[node];
+    }
+
+    public int getOkActionOffset(int node) {
+        return okActionOffset[node];
+    }
+
+    public int getOkOptionCount(int node) {
+        return okOptionCount[node];
+    }
+
+    public int getOkOptionIndex(int node) {
+        return okOptionIndex[node];
+    }
+
+    public int getHomeActionOffset(int node) {
+        return homeActionOffset[node];
+    }
+
+    public int getHomeOptionCount(int node) {
+        return homeOptionCount[node];
+    }
+
+    public int getHomeOptionIndex(int node) {
+        return homeOptionIndex[node];
+    }
+
+    public int getControls(int node) {
+        return controls[node];
+    }
+
+    public NodeView view() {
+        return new NodeView();
+    }
+
+    public NodeView view(int node) {
+        return new NodeView().moveTo(node);
+    }
+
+    /**
+     * Flyweight over one stage node, with StageNode-like accessors. A single view can be moved
+     * along the graph without allocating.
+     */
+    public class NodeView {
+
+        private int index;
+
+        public NodeView moveTo(int index) {
+            if (index < 0 || index >= imageIndex.length) {
+                throw new IndexOutOfBoundsException("No stage node " + index + " in pack " + uuid);
+            }
+            this.index = index;
+            return this;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public boolean hasImage() {
+            return imageIndex[index] != -1;
+        }
+
+        public String getImagePath() {
+            return hasImage() ? imagePaths[imageIndex[index]] : null;
+        }
+
+        public boolean hasAudio() {
+            return soundIndex[index] != -1;
+        }
+
+        public String getAudioPath() {
+            return hasAudio() ? soundPaths[soundIndex[index]] : null;
+        }
+
+        public boolean hasOkTransition() {
+            return okActionOffset[index] != -1;
+        }
+
+        public int getOkOptionCount() {
+            return okOptionCount[index];
+        }
+
+        public int getOkOption(int option) {
+            return listIndex[okActionOffset[index] + option];
+        }
+
+        public int getOkTarget() {
+            return getOkOption(okOptionIndex[index]);
+        }
+
+        public boolean hasHomeTransition() {
+            return homeActionOffset[index] != -1;
+        }
+
+        public int getHomeOptionCount() {
+            return homeOptionCount[index];
+        }
+
+        public int getHomeOption(int option) {
+            return listIndex[homeActionOffset[index] + option];
+        }
+
+        public int getHomeTarget() {
+            return getHomeOption(homeOptionIndex[index]);
+        }
+
+        public boolean isWheelEnabled() {
+            return (controls[index] & CONTROL_WHEEL) != 0;
+        }
+
+        public boolean isOkEnabled() {
+            return (controls[index] & CONTROL_OK) != 0;
+        }
+
+        public boolean isHomeEnabled() {
+            return (controls[index] & CONTROL_HOME) != 0;
+        }
+
+        public boolean isPauseEnabled() {
+            return (controls[index] & CONTROL_PAUSE) != 0;
+        }
+
+        public boolean isAutoJumpEnabled() {
+            return (controls[index] & CONTROL_AUTOJUMP) != 0;
+        }
+
+        public String toString() {
+            return "NodeView: {" + index + " img:" + hasImage() + " audio:" + hasAudio() + " ok:" + (hasOkTransition() ? getOkTarget() : -1)
+                    + " home:" + (hasHomeTransition() ? getHomeTarget() : -1) + " ctrl:" + controls[index] + "}";
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller.model;
+
+/**
+ * One decoded stage node record of a 'ni' file: asset indices, transitions (as offsets in 'li')
+ * and control flags, without any linked object.
+ * When streaming a pack, the same instance is refilled for each record: use copy() to keep one.
+ */
+public class NodeRecord {
+
+    private int index;
+    private int imageIndex;
+    private int soundIndex;
+    private int okActionOffset;
+    private int okOptionCount;
+    private int okOptionIndex;
+    private int homeActionOffset;
+    private int homeOptionCount;
+    private int homeOptionIndex;
+    private byte controls;
+
+    public void set(int index, int imageIndex, int soundIndex,
+                    int okActionOffset, int okOptionCount, int okOptionIndex,
+                    int homeActionOffset, int homeOptionCount, int homeOptionIndex,
+                    byte controls) {
+        this.index = index;
+        this.imageIndex = imageIndex;
+        this.soundIndex = soundIndex;
+        this.okActionOffset = okActionOffset;
+        this.okOptionCount = okOptionCount;
+        this.okOptionIndex = okOptionIndex;
+        this.homeActionOffset = homeActionOffset;
+        this.homeOptionCount = homeOptionCount;
+        this.homeOptionIndex = homeOptionIndex;
+        this.controls = controls;
+    }
+
+    public NodeRecord copy() {
+        NodeRecord copy = new NodeRecord();
+        copy.set(index, imageIndex, soundIndex, okActionOffset, okOptionCount, okOptionIndex,
+                homeActionOffset, homeOptionCount, homeOptionIndex, controls);
+        return copy;
+    }
+
+    public int getIndex() {
+        // Position of the record in 'ni' (0 is the pack's entry point)
+        return index;
+    }
+
+    public int getImageIndex() {
+        // Index in 'ri', -1 if none
+        return imageIndex;
+    }
+
+    public int getSoundIndex() {
+        // Index in 'si', -1 if none
+        return soundIndex;
+    }
+
+    public boolean hasOkTransition() {
+        return okActionOffset != -1;
+    }
+
+    public int getOkActionOffset() {
+        // Offset in 'li', -1 if no transition
+        return okActionOffset;
+    }
+
+    public int getOkOptionCount() {
+        return okOptionCount;
+    }
+
+    public int getOkOptionIndex() {
+        return okOptionIndex;
+    }
+
+    public boolean hasHomeTransition() {
+        return homeActionOffset != -1;
+    }
+
+    public int getHomeActionOffset() {
+        // Offset in 'li', -1 if no transition
+        return homeActionOffset;
+    }
+
+    public int getHomeOptionCount() {
+        return homeOptionCount;
+    }
+
+    public int getHomeOptionIndex() {
+        return homeOptionIndex;
+    }
+
+    public byte getControls() {
+        // CompactStoryPack.CONTROL_* bits
+        return controls;
+    }
+
+    public boolean isWheelEnabled() {
+        return (controls & CompactStoryPack.CONTROL_WHEEL) != 0;
+    }
+
+    public boolean isOkEnabled() {
+        return (controls & CompactStoryPack.CONTROL_OK) != 0;
+    }
+
+    public boolean isHomeEnabled() {
+        return (controls & CompactStoryPack.CONTROL_HOME) != 0;
+    }
+
+    public boolean isPauseEnabled() {
+        return (controls & CompactStoryPack.CONTROL_PAUSE) != 0;
+    }
+
+    public boolean isAutoJumpEnabled() {
+        return (controls & CompactStoryPack.CONTROL_AUTOJUMP) != 0;
+    }
+
+    public boolean isMenu() {
+        // Same rule as the player screen: audio only, no pause, and options to choose from
+        return imageIndex == -1 && soundIndex != -1 && !isPauseEnabled() && hasOkTransition();
+    }
+
+    public boolean isStory() {
+        return imageIndex == -1 && soundIndex != -1 && isPauseEnabled();
+    }
+}
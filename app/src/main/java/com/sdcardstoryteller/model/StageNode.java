@@ -6,9 +6,14 @@
 
 package com.sdcardstoryteller.model;
 
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
 public class StageNode extends Node {
 
     private String uuid;
+    private String packUuid;
+    private int index = -1;
     private ImageAsset image;
     private AudioAsset audio;
     private Transition okTransition;
@@ -27,7 +32,26 @@ public class StageNode extends Node {
         this.controlSettings = controlSettings;
     }
 
+    public StageNode(String packUuid, int index, ImageAsset image, AudioAsset audio, Transition okTransition, Transition homeTransition, ControlSettings controlSettings) {
+        // Node addressed by its index in 'ni': its uuid is derived from the pack uuid on first access
+        this(null, image, audio, okTransition, homeTransition, controlSettings);
+        this.packUuid = packUuid;
+        this.index = index;
+    }
+
+    public static String nodeUuid(String packUuid, int index) {
+        // First node has the same UUID as the story pack, the others a name-based UUID of "<pack uuid>/<index>",
+        // so that node identity is stable across loads
+        if (index == 0) {
+            return packUuid;
+        }
+        return UUID.nameUUIDFromBytes((packUuid + "/" + index).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
     public String getUuid() {
+        if (uuid == null && packUuid != null) {
+            uuid = nodeUuid(packUuid, index);
+        }
         return uuid;
     }
 
@@ -35,6 +59,20 @@ public class StageNode extends Node {
         this.uuid = uuid;
     }
 
+    public String getPackUuid() {
+        // Null unless the node was built with its pack uuid and index
+        return packUuid;
+    }
+
+    public int getIndex() {
+        // Index in 'ni', -1 if unknown
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
     public ImageAsset getImage() {
         return image;
     }
@@ -76,6 +114,6 @@ public class StageNode extends Node {
     }
 
     public String toString() {
-        return "StageNode: {"+uuid+" img:"+(image!=null)+" audio:"+(audio!=null)+" ok:"+okTransition+" home:"+homeTransition+" ctrl:"+controlSettings+"}";
+        return "StageNode: {"+getUuid()+" img:"+(image!=null)+" audio:"+(audio!=null)+" ok:"+okTransition+" home:"+homeTransition+" ctrl:"+controlSettings+"}";
     }
 }
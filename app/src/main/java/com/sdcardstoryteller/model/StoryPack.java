@@ -61,6 +61,11 @@ public class StoryPack {
         this.stageNodes = stageNodes;
     }
 
+    public StageNode getNode(int index) {
+        // Stage node by its index in 'ni' (0 is the entry point)
+        return stageNodes.get(index);
+    }
+
     public boolean isNightModeAvailable() {
         return nightModeAvailable;
     }
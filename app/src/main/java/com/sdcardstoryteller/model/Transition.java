@@ -35,6 +35,15 @@ public class Transition {
         this.optionIndex = optionIndex;
     }
 
+    public int getTargetIndex() {
+        // Index in 'ni' of the selected option, -1 if unknown
+        ActionNode node = getActionNode();
+        if (node == null || node.getOptions() == null || optionIndex < 0 || optionIndex >= node.getOptions().size()) {
+            return -1;
+        }
+        return node.getOptions().get(optionIndex).getIndex();
+    }
+
     public String toString() {
         return "Transition{action:"+actionNode+" optidx:"+optionIndex+"}";
     }
@@ -0,0 +1,77 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.StoryPack;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * A zipped pack reads as the same graph and assets as its folder, whether its entries are stored
+ * (read in place) or deflated (inflated on access). Entries' local headers are only read with
+ * their data.
+ */
+public class ArchiveStoryPackReaderTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void storedArchiveMatchesFolder() throws IOException {
+        checkArchive(true);
+    }
+
+    @Test
+    public void deflatedArchiveMatchesFolder() throws IOException {
+        checkArchive(false);
+    }
+
+    private void checkArchive(boolean stored) throws IOException {
+        File pack = TestPacks.writePack(temp.newFolder("content"), false);
+        String expected = TestPacks.describe(new FsStoryPackReader(true, true).read(pack));
+        File archive = TestPacks.writeArchive(pack, temp.newFile("pack.zip"), stored);
+        try (ArchiveStoryPackReader reader = ArchiveStoryPackReader.open(archive.toPath(), new FsStoryPackReader(true, true))) {
+            assertEquals(TestPacks.UUID_FOLDER, reader.getUuid());
+            assertEquals(expected, TestPacks.describe(reader.read()));
+        }
+    }
+
+    @Test
+    public void localHeadersAreReadOnAccess() throws IOException {
+        File pack = TestPacks.writePack(temp.newFolder("content"), false);
+        File archive = TestPacks.writeArchive(pack, temp.newFile("pack.zip"), true);
+        // Local header signature of the last sound, whose name first appears right after it
+        byte[] data = Files.readAllBytes(archive.toPath());
+        int name = new String(data, StandardCharsets.ISO_8859_1).indexOf(TestPacks.UUID_FOLDER + "/sf/000/00000002");
+        try (RandomAccessFile file = new RandomAccessFile(archive, "rw")) {
+            file.seek(name - 30);
+            file.writeInt(0);
+        }
+        try (ArchiveStoryPackReader reader = ArchiveStoryPackReader.open(archive.toPath(), new FsStoryPackReader(true, true))) {
+            // Opening and building the graph don't touch the entry, playing its audio does
+            StoryPack read = reader.read();
+            TestPacks.readAudio(read.getNode(1).getAudio());
+            try {
+                TestPacks.readAudio(read.getNode(2).getAudio());
+                fail("Invalid local header not reported");
+            } catch (IOException e) {
+                assertEquals("Invalid local header for entry " + TestPacks.UUID_FOLDER + "/sf/000/00000002", e.getMessage());
+            }
+        }
+    }
+}
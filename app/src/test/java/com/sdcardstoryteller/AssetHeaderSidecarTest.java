@@ -0,0 +1,81 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Assets read through a pack's sidecar (deciphered headers built in background) are the same as
+ * assets deciphered from the pack, and a replaced asset is never served a stale header: its pack's
+ * sidecar is rebuilt instead.
+ */
+public class AssetHeaderSidecarTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final AssetHeaderSidecar sidecar = AssetHeaderSidecar.getInstance();
+
+    @Before
+    public void setUp() throws IOException {
+        sidecar.setFolder(temp.newFolder("headers"));
+    }
+
+    @After
+    public void tearDown() {
+        sidecar.setFolder(null);
+    }
+
+    @Test
+    public void sidecarMatchesPack() throws IOException, InterruptedException {
+        File pack = TestPacks.writePack(temp.newFolder("content"), false);
+        // First read builds the sidecar
+        String expected = TestPacks.describe(new FsStoryPackReader(true, true).read(pack));
+        awaitSidecar(pack.toPath().resolve("sf/000/00000000"));
+
+        long hits = sidecar.getHitCount();
+        assertEquals(expected, TestPacks.describe(new FsStoryPackReader(true, true).read(pack)));
+        assertTrue(sidecar.getHitCount() > hits);
+    }
+
+    @Test
+    public void replacedAssetIsNotServed() throws IOException, InterruptedException {
+        File pack = TestPacks.writePack(temp.newFolder("content"), false);
+        Path asset = pack.toPath().resolve("rf/000/00000001");
+        awaitSidecar(asset);
+        long lastModified = asset.toFile().lastModified() + 2000;
+        assertTrue(asset.toFile().setLastModified(lastModified));
+        assertNull(sidecar.get(asset));
+
+        // Pack's sidecar is rebuilt, then serves the replaced asset again
+        assertEquals(lastModified, awaitSidecar(asset).getLastModified());
+        assertEquals(lastModified, sidecar.get(asset).getLastModified());
+    }
+
+    private AssetHeaderSidecar.Header awaitSidecar(Path asset) throws InterruptedException {
+        AssetHeaderSidecar.Header header = sidecar.get(asset);
+        for (int i=0; i<500 && header == null; i++) {
+            Thread.sleep(10);
+            header = sidecar.get(asset);
+        }
+        assertNotNull("Sidecar not built", header);
+        return header;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.StageNode;
+import com.sdcardstoryteller.model.StoryPack;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A pack in the raw sector layout reads as the same graph and (deciphered) assets as the same
+ * pack in the fs format.
+ */
+public class RawStoryPackReaderTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void rawImageMatchesFolder() throws IOException {
+        File pack = TestPacks.writePack(temp.newFolder("content"), false);
+        StoryPack expected = new FsStoryPackReader(true, true).read(pack);
+        assertArrayEquals(TestPacks.image(1), expected.getNode(2).getImage().getRawData());
+        assertArrayEquals(TestPacks.sound(0), TestPacks.readAudio(expected.getNode(0).getAudio()));
+
+        RawStoryPackReader reader = new RawStoryPackReader(TestPacks.writeRawImage(temp.newFile("sdcard.img")).toPath());
+        List<RawStoryPackReader.PackEntry> packs = reader.readPackList();
+        assertEquals(1, packs.size());
+        assertTrue(reader.isValid(packs.get(0)));
+        StoryPack raw = reader.read(packs.get(0));
+        assertEquals(TestPacks.describe(expected), TestPacks.describe(raw));
+    }
+
+    @Test
+    public void sharedAssetsAreReadOnce() throws IOException {
+        // Options and their story play the same audio: one asset for both
+        RawStoryPackReader reader = new RawStoryPackReader(TestPacks.writeRawImage(temp.newFile("sdcard.img")).toPath());
+        StoryPack raw = reader.read(reader.readPackList().get(0));
+        StageNode option = raw.getNode(1);
+        StageNode story = option.getOkTransition().getActionNode().getOptions().get(0);
+        assertTrue(option.getAudio() == story.getAudio());
+    }
+}
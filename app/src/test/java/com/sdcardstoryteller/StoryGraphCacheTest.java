@@ -0,0 +1,77 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.CompactStoryPack;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A graph read back from the cache builds the same pack as the pack folder, and any change of the
+ * pack's index files makes its entry stale. A cache which can't be written or read back is only a
+ * miss.
+ */
+public class StoryGraphCacheTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void cachedGraphMatchesFolder() throws IOException {
+        File pack = TestPacks.writePack(temp.newFolder("content"), false);
+        FsStoryPackReader reader = new FsStoryPackReader(true, true);
+        StoryGraphCache cache = new StoryGraphCache(temp.newFolder("graphs"));
+        cache.read(pack, reader);
+
+        CompactStoryPack cached = cache.get(TestPacks.UUID_FOLDER, StoryGraphCache.fingerprint(pack));
+        assertNotNull(cached);
+        assertEquals(TestPacks.describe(reader.read(pack)), TestPacks.describe(reader.toStoryPack(cached, pack)));
+    }
+
+    @Test
+    public void changedPackIsStale() throws IOException {
+        File pack = TestPacks.writePack(temp.newFolder("content"), false);
+        StoryGraphCache cache = new StoryGraphCache(temp.newFolder("graphs"));
+        cache.read(pack, new FsStoryPackReader(true, true));
+        File li = new File(pack, "li");
+        assertTrue(li.setLastModified(li.lastModified() + 2000));
+        assertNull(cache.get(TestPacks.UUID_FOLDER, StoryGraphCache.fingerprint(pack)));
+    }
+
+    @Test
+    public void unwritableCacheDoesNotFailRead() throws IOException {
+        File pack = TestPacks.writePack(temp.newFolder("content"), false);
+        // Cache folder can't be created: a file is in the way
+        StoryGraphCache cache = new StoryGraphCache(temp.newFile("graphs"));
+        assertEquals(TestPacks.NODES, cache.read(pack, new FsStoryPackReader(true, true)).getNodeCount());
+    }
+
+    @Test
+    public void corruptedEntryIsMiss() throws IOException {
+        File pack = TestPacks.writePack(temp.newFolder("content"), false);
+        File graphs = temp.newFolder("graphs");
+        StoryGraphCache cache = new StoryGraphCache(graphs);
+        cache.read(pack, new FsStoryPackReader(true, true));
+        try (RandomAccessFile entry = new RandomAccessFile(new File(graphs, TestPacks.UUID_FOLDER + ".graph"), "rw")) {
+            // Node count, after the header (3 ints and 12 fingerprint longs), the uuid and 5 bytes of pack fields
+            entry.seek(3 * 4 + 12 * 8 + 2 + TestPacks.UUID_FOLDER.length() + 5);
+            entry.writeInt(Integer.MAX_VALUE);
+        }
+        assertNull(cache.get(TestPacks.UUID_FOLDER, StoryGraphCache.fingerprint(pack)));
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller;
+
+import com.sdcardstoryteller.model.AudioAsset;
+import com.sdcardstoryteller.model.StageNode;
+import com.sdcardstoryteller.model.StoryPack;
+import com.sdcardstoryteller.model.Transition;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Small pack written by the tests in every format the app reads: fs folder, zip archive and raw
+ * image. Node 0 is a menu of two options (image and audio), each leading to a story which jumps
+ * back to the menu. Assets are whole sectors, so that the raw layout holds the same data.
+ */
+class TestPacks {
+
+    static final String UUID_FOLDER = "0000CAFE";
+    static final int OPTIONS = 2;
+    static final int NODES = 1 + OPTIONS * 2;
+    static final int IMAGES = OPTIONS;
+    static final int SOUNDS = 1 + OPTIONS;
+    static final int IMAGE_SIZE = 2 * Constants.SECTOR_SIZE;
+    static final int SOUND_SIZE = 4 * Constants.SECTOR_SIZE;
+
+    private static final int NODE_SIZE = 44;
+    private static final int NODES_LIST = 512;
+
+    static byte[] image(int index) {
+        return data(index, IMAGE_SIZE);
+    }
+
+    static byte[] sound(int index) {
+        return data(100 + index, SOUND_SIZE);
+    }
+
+    private static byte[] data(int seed, int size) {
+        byte[] data = new byte[size];
+        for (int i=0; i<size; i++) {
+            data[i] = (byte) (seed * 31 + i * 7 + (i >> 8));
+        }
+        return data;
+    }
+
+    static File writePack(File parent, boolean cleartext) throws IOException {
+        Path folder = new File(parent, UUID_FOLDER).toPath();
+        Files.createDirectories(folder);
+        ByteArrayOutputStream ri = new ByteArrayOutputStream();
+        for (int i=0; i<IMAGES; i++) {
+            String name = String.format("%08X", i);
+            ri.write(("000\\" + name).getBytes(StandardCharsets.UTF_8));
+            writeAsset(folder.resolve("rf").resolve("000").resolve(name), image(i), cleartext);
+        }
+        ByteArrayOutputStream si = new ByteArrayOutputStream();
+        for (int i=0; i<SOUNDS; i++) {
+            String name = String.format("%08X", i);
+            si.write(("000\\" + name).getBytes(StandardCharsets.UTF_8));
+            writeAsset(folder.resolve("sf").resolve("000").resolve(name), sound(i), cleartext);
+        }
+
+        // Menu options, then one single-option list per story
+        ByteBuffer li = ByteBuffer.allocate(OPTIONS * 2 * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0; i<OPTIONS; i++) {
+            li.putInt(1 + i);
+        }
+        for (int i=0; i<OPTIONS; i++) {
+            li.putInt(1 + OPTIONS + i);
+        }
+
+        ByteBuffer ni = ByteBuffer.allocate(NODES_LIST + NODES * NODE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        ni.putShort((short) 1).putShort((short) 1).putInt(NODES_LIST).putInt(NODE_SIZE)
+                .putInt(NODES).putInt(IMAGES).putInt(SOUNDS).put((byte) 0);
+        ni.position(NODES_LIST);
+        putNode(ni, -1, 0, 0, OPTIONS, 0, -1, -1, -1, true, true, false, false, false);
+        for (int i=0; i<OPTIONS; i++) {
+            putNode(ni, i, 1 + i, OPTIONS + i, 1, 0, 0, OPTIONS, i, true, true, true, false, false);
+        }
+        for (int i=0; i<OPTIONS; i++) {
+            putNode(ni, -1, 1 + i, 0, OPTIONS, i, 0, OPTIONS, 0, false, true, true, true, true);
+        }
+
+        Files.write(folder.resolve("ni"), ni.array());
+        writeAsset(folder.resolve("li"), li.array(), cleartext);
+        writeAsset(folder.resolve("ri"), ri.toByteArray(), cleartext);
+        writeAsset(folder.resolve("si"), si.toByteArray(), cleartext);
+        if (cleartext) {
+            Files.write(folder.resolve(".cleartext"), new byte[0]);
+        }
+        return folder.toFile();
+    }
+
+    private static void putNode(ByteBuffer ni, int image, int sound,
+                                int okOffset, int okCount, int okIndex, int homeOffset, int homeCount, int homeIndex,
+                                boolean wheel, boolean ok, boolean home, boolean pause, boolean autoJump) {
+        ni.putInt(image).putInt(sound)
+                .putInt(okOffset).putInt(okCount).putInt(okIndex)
+                .putInt(homeOffset).putInt(homeCount).putInt(homeIndex)
+                .putShort((short) (wheel ? 1 : 0)).putShort((short) (ok ? 1 : 0)).putShort((short) (home ? 1 : 0))
+                .putShort((short) (pause ? 1 : 0)).putShort((short) (autoJump ? 1 : 0)).putShort((short) 0);
+    }
+
+    private static void writeAsset(Path path, byte[] data, boolean cleartext) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, cleartext ? data : encipher(data));
+    }
+
+    private static byte[] encipher(byte[] data) {
+        // Only the first block is ciphered
+        data = data.clone();
+        ByteBuffer bb = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int[] block = new int[Math.min(XXTEACipher.HEADER_SIZE, data.length) / 4];
+        for (int i=0; i<block.length; i++) {
+            block[i] = bb.getInt(i * 4);
+        }
+        XXTEACipher.btea(block, Math.min(128, data.length / 4), XXTEACipher.toIntArray(XXTEACipher.COMMON_KEY, ByteOrder.BIG_ENDIAN));
+        for (int i=0; i<block.length; i++) {
+            bb.putInt(i * 4, block[i]);
+        }
+        return data;
+    }
+
+    static File writeArchive(File packFolder, File archive, boolean stored) throws IOException {
+        // Pack in its own top-level folder, as a 'zip -r' of the '.content' entry
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive))) {
+            zip.setMethod(stored ? ZipOutputStream.STORED : ZipOutputStream.DEFLATED);
+            Path root = packFolder.toPath().getParent();
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(packFolder.toPath())) {
+                files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                byte[] data = Files.readAllBytes(file);
+                ZipEntry entry = new ZipEntry(root.relativize(file).toString().replace(File.separatorChar, '/'));
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    entry.setSize(data.length);
+                    entry.setCompressedSize(data.length);
+                    entry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(entry);
+                zip.write(data);
+                zip.closeEntry();
+            }
+        }
+        return archive;
+    }
+
+    static File writeRawImage(File image) throws IOException {
+        // Single pack, sectors relative to the pack start: header, stage nodes, action nodes, images, sounds, check bytes
+        int headerSectors = BinaryEnrichedMetadataReader.getHeaderSectors(0);
+        int imageSectors = IMAGE_SIZE / Constants.SECTOR_SIZE;
+        int soundSectors = SOUND_SIZE / Constants.SECTOR_SIZE;
+        // Action sectors are relative to the first stage node
+        int menuList = NODES;
+        int storyLists = menuList + 1;
+        int firstImage = headerSectors + storyLists + OPTIONS;
+        int firstSound = firstImage + IMAGES * imageSectors;
+        int size = firstSound + SOUNDS * soundSectors + 1;
+        long pack = Constants.PACKS_LIST_SECTOR + 1;
+
+        try (FileChannel channel = FileChannel.open(image.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer list = ByteBuffer.allocate(Constants.SECTOR_SIZE);
+            list.putShort((short) 1).putInt(1).putInt(size).putShort((short) 0).putShort((short) 44100);
+            write(channel, Constants.PACKS_LIST_SECTOR, list);
+
+            ByteBuffer header = ByteBuffer.allocate(Constants.SECTOR_SIZE);
+            header.putShort((short) NODES).put((byte) 0).putShort((short) 1);
+            write(channel, pack, header);
+
+            ByteBuffer nodes = ByteBuffer.allocate(NODES * Constants.SECTOR_SIZE);
+            putRawNode(nodes, 0, -1, 0, firstSound, soundSectors, menuList, OPTIONS, 0, -1, 0, -1,
+                    true, true, false, false, false);
+            for (int i=0; i<OPTIONS; i++) {
+                putRawNode(nodes, 1 + i, firstImage + i * imageSectors, imageSectors,
+                        firstSound + (1 + i) * soundSectors, soundSectors,
+                        storyLists + i, 1, 0, menuList, OPTIONS, i, true, true, true, false, false);
+            }
+            for (int i=0; i<OPTIONS; i++) {
+                putRawNode(nodes, 1 + OPTIONS + i, -1, 0, firstSound + (1 + i) * soundSectors, soundSectors,
+                        menuList, OPTIONS, i, menuList, OPTIONS, 0, false, true, true, true, true);
+            }
+            write(channel, pack + headerSectors, nodes);
+
+            ByteBuffer actions = ByteBuffer.allocate((1 + OPTIONS) * Constants.SECTOR_SIZE);
+            for (int i=0; i<OPTIONS; i++) {
+                actions.putShort(i * 2, (short) (1 + i));
+                actions.putShort((1 + i) * Constants.SECTOR_SIZE, (short) (1 + OPTIONS + i));
+            }
+            write(channel, pack + headerSectors + menuList, actions);
+
+            for (int i=0; i<IMAGES; i++) {
+                write(channel, pack + firstImage + (long) i * imageSectors, ByteBuffer.wrap(image(i)));
+            }
+            for (int i=0; i<SOUNDS; i++) {
+                write(channel, pack + firstSound + (long) i * soundSectors, ByteBuffer.wrap(sound(i)));
+            }
+            write(channel, pack + size - 1, ByteBuffer.wrap(Constants.CHECK_BYTES));
+        }
+        return image;
+    }
+
+    private static void putRawNode(ByteBuffer nodes, int index, int imageSector, int imageSectors, int soundSector, int soundSectors,
+                                   int okSector, int okCount, int okIndex, int homeSector, int homeCount, int homeIndex,
+                                   boolean wheel, boolean ok, boolean home, boolean pause, boolean autoJump) {
+        UUID uuid = new UUID(0xCAFE, index);
+        nodes.position(index * Constants.SECTOR_SIZE);
+        nodes.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits())
+                .putInt(imageSector).putInt(imageSectors).putInt(soundSector).putInt(soundSectors)
+                .putShort((short) okSector).putShort((short) okCount).putShort((short) okIndex)
+                .putShort((short) homeSector).putShort((short) homeCount).putShort((short) homeIndex)
+                .putShort((short) (wheel ? 1 : 0)).putShort((short) (ok ? 1 : 0)).putShort((short) (home ? 1 : 0))
+                .putShort((short) (pause ? 1 : 0)).putShort((short) (autoJump ? 1 : 0));
+    }
+
+    private static void write(FileChannel channel, long sector, ByteBuffer bb) throws IOException {
+        bb.rewind();
+        long position = sector * Constants.SECTOR_SIZE;
+        while (bb.hasRemaining()) {
+            position += channel.write(bb, position);
+        }
+    }
+
+    static String describe(StoryPack pack) throws IOException {
+        // Graph and deciphered asset contents, whatever the format the pack was read from
+        // (images are read again, not taken from a previous read of the same pack uuid)
+        ImageAssetCache.getInstance().clear();
+        List<StageNode> nodes = pack.getStageNodes();
+        Map<StageNode, Integer> indices = new IdentityHashMap<>();
+        for (int i=0; i<nodes.size(); i++) {
+            indices.put(nodes.get(i), i);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<nodes.size(); i++) {
+            StageNode node = nodes.get(i);
+            sb.append(i)
+                    .append(" image=").append(node.getImage() == null ? "-" : digest(node.getImage().getRawData()))
+                    .append(" audio=").append(node.getAudio() == null ? "-" : digest(readAudio(node.getAudio())))
+                    .append(" ok=").append(describe(node.getOkTransition(), indices))
+                    .append(" home=").append(describe(node.getHomeTransition(), indices))
+                    .append(' ').append(node.getControlSettings())
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String describe(Transition transition, Map<StageNode, Integer> indices) {
+        if (transition == null) {
+            return "-";
+        }
+        StringBuilder sb = new StringBuilder().append(transition.getOptionIndex()).append(" of [");
+        for (StageNode option : transition.getActionNode().getOptions()) {
+            sb.append(indices.get(option)).append(' ');
+        }
+        return sb.append(']').toString();
+    }
+
+    static byte[] readAudio(AudioAsset audio) throws IOException {
+        try (CipheredAssetReader reader = CipheredAssetReader.of(audio)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            long position = 0;
+            int n;
+            while ((n = reader.readAt(position, buffer, 0, buffer.length)) > 0) {
+                out.write(buffer, 0, n);
+                position += n;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static String digest(byte[] data) {
+        return data.length + "/" + Integer.toHexString(Arrays.hashCode(data));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller.benchmark;
+
+import com.sdcardstoryteller.ArchiveStoryPackReader;
+import com.sdcardstoryteller.FsStoryPackReader;
+import com.sdcardstoryteller.model.StoryPack;
+import com.sdcardstoryteller.model.metadata.StoryPackMetadata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Same packs as PackReaderBenchmark, read in place from a zip archive (audio stored, the rest
+ * stored or deflated).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ArchiveReaderBenchmark {
+
+    @Param({"51", "501"})
+    public int nodeCount;
+
+    @Param({"false", "true"})
+    public boolean deflate;
+
+    private Path root;
+    private Path archive;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        root = Files.createTempDirectory("packs");
+        Path packFolder = root.resolve("BENCH001");
+        new SyntheticPackGenerator()
+                .nodeCount(nodeCount)
+                .imageCount(nodeCount / 4)
+                .soundCount(nodeCount / 2)
+                .write(packFolder);
+        archive = root.resolve("BENCH001.zip");
+        BenchmarkFiles.zip(packFolder, archive, deflate);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        BenchmarkFiles.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public StoryPack read() throws IOException {
+        try (ArchiveStoryPackReader reader = ArchiveStoryPackReader.open(archive, new FsStoryPackReader(true, true))) {
+            return reader.read();
+        }
+    }
+
+    @Benchmark
+    public StoryPackMetadata readMetadata() throws IOException {
+        try (ArchiveStoryPackReader reader = ArchiveStoryPackReader.open(archive)) {
+            return reader.readMetadata();
+        }
+    }
+}
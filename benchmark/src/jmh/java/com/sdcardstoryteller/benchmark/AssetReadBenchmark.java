@@ -0,0 +1,90 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller.benchmark;
+
+import com.sdcardstoryteller.CipheredAssetReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the way MediaPlayer does through AudioAssetMediaDataSource: sequential chunks, and small
+ * random (often backward) reads while probing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AssetReadBenchmark {
+
+    private static final int FILE_SIZE = 1024 * 1024;
+    private static final int RANDOM_READS = 256;
+
+    @Param({"4096", "65536"})
+    public int chunkSize;
+
+    private Path file;
+    private byte[] buffer;
+    private long[] positions;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        byte[] content = new byte[FILE_SIZE];
+        random.nextBytes(content);
+        file = Files.createTempFile("audio", ".mp3");
+        Files.write(file, SyntheticPackGenerator.encipher(content));
+        buffer = new byte[chunkSize];
+        positions = new long[RANDOM_READS];
+        for (int i=0; i<RANDOM_READS; i++) {
+            positions[i] = random.nextInt(FILE_SIZE);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long sequentialRead() throws IOException {
+        long total = 0;
+        try (CipheredAssetReader reader = new CipheredAssetReader(file, true)) {
+            long position = 0;
+            int n;
+            while ((n = reader.readAt(position, buffer, 0, buffer.length)) > 0) {
+                position += n;
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long randomRead() throws IOException {
+        long total = 0;
+        try (CipheredAssetReader reader = new CipheredAssetReader(file, true)) {
+            for (long position : positions) {
+                total += reader.readAt(position, buffer, 0, Math.min(buffer.length, 1024));
+            }
+        }
+        return total;
+    }
+}
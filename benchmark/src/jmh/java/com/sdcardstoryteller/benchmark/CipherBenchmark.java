@@ -0,0 +1,78 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller.benchmark;
+
+import com.sdcardstoryteller.XXTEACipher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CipherBenchmark {
+
+    @Param({"8192", "262144"})
+    public int fileSize;
+
+    private byte[] header;
+    private ByteBuffer headerBuffer;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        header = new byte[XXTEACipher.HEADER_SIZE];
+        random.nextBytes(header);
+        headerBuffer = ByteBuffer.allocate(XXTEACipher.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        random.nextBytes(headerBuffer.array());
+        byte[] content = new byte[fileSize];
+        random.nextBytes(content);
+        file = Files.createTempFile("asset", ".bin");
+        Files.write(file, SyntheticPackGenerator.encipher(content));
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public byte[] bteaWithKeySchedule() {
+        // Former code path: header and key converted to int[] on each call, then back to bytes
+        int[] data = XXTEACipher.toIntArray(header, ByteOrder.LITTLE_ENDIAN);
+        XXTEACipher.btea(data, -128, XXTEACipher.toIntArray(XXTEACipher.COMMON_KEY, ByteOrder.BIG_ENDIAN));
+        return XXTEACipher.toByteArray(data, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Benchmark
+    public ByteBuffer decryptHeaderInPlace() {
+        XXTEACipher.decryptHeader(headerBuffer, XXTEACipher.HEADER_SIZE);
+        return headerBuffer;
+    }
+
+    @Benchmark
+    public byte[] readCipheredFile() throws IOException {
+        return XXTEACipher.readCipheredFile(file);
+    }
+}
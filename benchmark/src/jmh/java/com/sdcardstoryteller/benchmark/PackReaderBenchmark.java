@@ -0,0 +1,99 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller.benchmark;
+
+import com.sdcardstoryteller.FsStoryPackReader;
+import com.sdcardstoryteller.model.CompactStoryPack;
+import com.sdcardstoryteller.model.StoryPack;
+import com.sdcardstoryteller.model.metadata.StoryPackMetadata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PackReaderBenchmark {
+
+    @Param({"51", "501"})
+    public int nodeCount;
+
+    @Param({"false", "true"})
+    public boolean cleartext;
+
+    private Path root;
+    private File packFolder;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        root = Files.createTempDirectory("packs");
+        packFolder = root.resolve("BENCH001").toFile();
+        new SyntheticPackGenerator()
+                .nodeCount(nodeCount)
+                .imageCount(nodeCount / 4)
+                .soundCount(nodeCount / 2)
+                .cleartext(cleartext)
+                .write(packFolder.toPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        BenchmarkFiles.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public StoryPack read() throws IOException {
+        return new FsStoryPackReader().read(packFolder);
+    }
+
+    @Benchmark
+    public StoryPack readLazy() throws IOException {
+        return new FsStoryPackReader(true).read(packFolder);
+    }
+
+    @Benchmark
+    public StoryPack readLazyTransitions() throws IOException {
+        return new FsStoryPackReader(true, true).read(packFolder);
+    }
+
+    @Benchmark
+    public CompactStoryPack readCompact() throws IOException {
+        return new FsStoryPackReader().readCompact(packFolder);
+    }
+
+    @Benchmark
+    public int visitNodes() throws IOException {
+        // Counts the menus without building the graph
+        int[] menus = new int[1];
+        new FsStoryPackReader().visitNodes(packFolder, node -> {
+            if (node.isMenu()) {
+                menus[0]++;
+            }
+            return true;
+        });
+        return menus[0];
+    }
+
+    @Benchmark
+    public StoryPackMetadata readMetadata() throws IOException {
+        return new FsStoryPackReader().readMetadata(packFolder.toPath());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller.benchmark;
+
+import com.sdcardstoryteller.RawStoryPackReader;
+import com.sdcardstoryteller.model.StoryPack;
+import com.sdcardstoryteller.model.metadata.StoryPackMetadata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Same packs as PackReaderBenchmark, read from a raw SD card image instead of a '.content' folder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RawImageBenchmark {
+
+    @Param({"51", "501"})
+    public int nodeCount;
+
+    private Path image;
+    private RawStoryPackReader reader;
+    private RawStoryPackReader.PackEntry pack;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        image = Files.createTempFile("sdcard", ".img");
+        new SyntheticRawImageGenerator()
+                .nodeCount(nodeCount)
+                .imageCount(nodeCount / 4)
+                .soundCount(nodeCount / 2)
+                .write(image);
+        reader = new RawStoryPackReader(image);
+        pack = reader.readPackList().get(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public StoryPack read() throws IOException {
+        return reader.read(pack);
+    }
+
+    @Benchmark
+    public StoryPackMetadata readMetadata() throws IOException {
+        return reader.readMetadata(pack);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller.benchmark;
+
+import com.sdcardstoryteller.XXTEACipher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Writes synthetic story packs in the fs format ('ni', 'li', 'ri', 'si', 'rf/' and 'sf/'), either
+ * ciphered or cleartext.
+ * Pack layout: node 0 is a menu whose options each have an image and a sound, and lead to a story
+ * node; story nodes go back to the menu. Options reuse images and sounds when there are fewer
+ * assets than options.
+ */
+public class SyntheticPackGenerator {
+
+    private static final int NODE_SIZE = 44;
+    private static final int NODES_LIST = 512;
+
+    private int optionCount = 50;
+    private int imageCount = 25;
+    private int soundCount = 50;
+    private int imageSize = 8 * 1024;
+    private int soundSize = 64 * 1024;
+    private boolean cleartext = false;
+    private long seed = 42;
+
+    public SyntheticPackGenerator optionCount(int optionCount) {
+        this.optionCount = optionCount;
+        return this;
+    }
+
+    public SyntheticPackGenerator nodeCount(int nodeCount) {
+        // One menu node, plus one option node and one story node per option
+        return optionCount(Math.max(1, (nodeCount - 1) / 2));
+    }
+
+    public SyntheticPackGenerator imageCount(int imageCount) {
+        this.imageCount = imageCount;
+        return this;
+    }
+
+    public SyntheticPackGenerator soundCount(int soundCount) {
+        this.soundCount = soundCount;
+        return this;
+    }
+
+    public SyntheticPackGenerator imageSize(int imageSize) {
+        this.imageSize = imageSize;
+        return this;
+    }
+
+    public SyntheticPackGenerator soundSize(int soundSize) {
+        this.soundSize = soundSize;
+        return this;
+    }
+
+    public SyntheticPackGenerator cleartext(boolean cleartext) {
+        this.cleartext = cleartext;
+        return this;
+    }
+
+    public SyntheticPackGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public int getNodeCount() {
+        return 1 + optionCount * 2;
+    }
+
+    public void write(Path packFolder) throws IOException {
+        Random random = new Random(seed);
+        Files.createDirectories(packFolder);
+        int images = Math.max(1, Math.min(imageCount, optionCount));
+        int sounds = Math.max(2, soundCount);
+
+        // Assets and their index files (12 bytes per entry)
+        ByteArrayOutputStream ri = new ByteArrayOutputStream();
+        for (int i=0; i<images; i++) {
+            String name = String.format("%08X", i);
+            ri.write(("000\\" + name).getBytes(StandardCharsets.UTF_8));
+            writeAsset(packFolder.resolve("rf").resolve("000").resolve(name), randomBytes(random, imageSize));
+        }
+        ByteArrayOutputStream si = new ByteArrayOutputStream();
+        for (int i=0; i<sounds; i++) {
+            String name = String.format("%08X", i);
+            si.write(("000\\" + name).getBytes(StandardCharsets.UTF_8));
+            writeAsset(packFolder.resolve("sf").resolve("000").resolve(name), randomBytes(random, soundSize));
+        }
+
+        // List index: menu options first, then one single-option list per story
+        ByteBuffer li = ByteBuffer.allocate(optionCount * 2 * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0; i<optionCount; i++) {
+            li.putInt(1 + i);
+        }
+        for (int i=0; i<optionCount; i++) {
+            li.putInt(1 + optionCount + i);
+        }
+
+        // Node index
+        int nodeCount = getNodeCount();
+        ByteBuffer ni = ByteBuffer.allocate(NODES_LIST + nodeCount * NODE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        ni.putShort((short) 1).putShort((short) 1).putInt(NODES_LIST).putInt(NODE_SIZE)
+                .putInt(nodeCount).putInt(images).putInt(sounds).put((byte) 0);
+        ni.position(NODES_LIST);
+        // Menu: audio only, ok leads to the options
+        putNode(ni, -1, 0, 0, optionCount, 0, -1, -1, -1, true, true, false, false, false);
+        // Options: image and audio, ok leads to their story, home back to the menu
+        for (int i=0; i<optionCount; i++) {
+            putNode(ni, i % images, 1 + i % (sounds - 1), optionCount + i, 1, 0, 0, optionCount, i, true, true, true, false, false);
+        }
+        // Stories: audio only, auto-jump back to the menu
+        for (int i=0; i<optionCount; i++) {
+            putNode(ni, -1, 1 + i % (sounds - 1), 0, optionCount, i, 0, optionCount, 0, false, true, true, true, true);
+        }
+
+        Files.write(packFolder.resolve("ni"), ni.array());
+        writeAsset(packFolder.resolve("li"), li.array());
+        writeAsset(packFolder.resolve("ri"), ri.toByteArray());
+        writeAsset(packFolder.resolve("si"), si.toByteArray());
+        if (cleartext) {
+            Files.write(packFolder.resolve(".cleartext"), new byte[0]);
+        }
+    }
+
+    private static void putNode(ByteBuffer ni, int image, int sound,
+                                int okOffset, int okCount, int okIndex, int homeOffset, int homeCount, int homeIndex,
+                                boolean wheel, boolean ok, boolean home, boolean pause, boolean autoJump) {
+        ni.putInt(image).putInt(sound)
+                .putInt(okOffset).putInt(okCount).putInt(okIndex)
+                .putInt(homeOffset).putInt(homeCount).putInt(homeIndex)
+                .putShort((short) (wheel ? 1 : 0)).putShort((short) (ok ? 1 : 0)).putShort((short) (home ? 1 : 0))
+                .putShort((short) (pause ? 1 : 0)).putShort((short) (autoJump ? 1 : 0)).putShort((short) 0);
+    }
+
+    private void writeAsset(Path path, byte[] data) throws IOException {
+        Files.createDirectories(path.getParent());
+        if (!cleartext) {
+            data = encipher(data);
+        }
+        Files.write(path, data);
+    }
+
+    static byte[] encipher(byte[] data) {
+        // Same as the device format: only the first block is ciphered
+        ByteBuffer bb = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int[] block = new int[Math.min(XXTEACipher.HEADER_SIZE, data.length) / 4];
+        for (int i=0; i<block.length; i++) {
+            block[i] = bb.getInt(i * 4);
+        }
+        XXTEACipher.btea(block, Math.min(128, data.length / 4), XXTEACipher.toIntArray(XXTEACipher.COMMON_KEY, ByteOrder.BIG_ENDIAN));
+        for (int i=0; i<block.length; i++) {
+            bb.putInt(i * 4, block[i]);
+        }
+        return data;
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Usage: SyntheticPackGenerator <output folder> [node count] [cleartext]
+        if (args.length < 1) {
+            System.err.println("Usage: SyntheticPackGenerator <output folder> [node count] [cleartext]");
+            System.exit(1);
+        }
+        SyntheticPackGenerator generator = new SyntheticPackGenerator();
+        if (args.length > 1) {
+            generator.nodeCount(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2) {
+            generator.cleartext(Boolean.parseBoolean(args[2]));
+        }
+        generator.write(new File(args[0]).toPath());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller.benchmark;
+
+import com.sdcardstoryteller.BinaryEnrichedMetadataReader;
+import com.sdcardstoryteller.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Writes a synthetic SD card image in the raw sector layout read by RawStoryPackReader, with the
+ * same pack graph as SyntheticPackGenerator (one menu, an option node and a story node per option).
+ * The image is sparse: nothing is written before the pack list.
+ */
+public class SyntheticRawImageGenerator {
+
+    private int packCount = 1;
+    private int optionCount = 50;
+    private int imageCount = 25;
+    private int soundCount = 50;
+    private int imageSize = 8 * 1024;
+    private int soundSize = 64 * 1024;
+    private long seed = 42;
+
+    public SyntheticRawImageGenerator packCount(int packCount) {
+        this.packCount = packCount;
+        return this;
+    }
+
+    public SyntheticRawImageGenerator nodeCount(int nodeCount) {
+        this.optionCount = Math.max(1, (nodeCount - 1) / 2);
+        return this;
+    }
+
+    public SyntheticRawImageGenerator imageCount(int imageCount) {
+        this.imageCount = imageCount;
+        return this;
+    }
+
+    public SyntheticRawImageGenerator soundCount(int soundCount) {
+        this.soundCount = soundCount;
+        return this;
+    }
+
+    public SyntheticRawImageGenerator imageSize(int imageSize) {
+        this.imageSize = imageSize;
+        return this;
+    }
+
+    public SyntheticRawImageGenerator soundSize(int soundSize) {
+        this.soundSize = soundSize;
+        return this;
+    }
+
+    public SyntheticRawImageGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public int getNodeCount() {
+        return 1 + optionCount * 2;
+    }
+
+    public void write(Path imageFile) throws IOException {
+        Random random = new Random(seed);
+        try (FileChannel channel = FileChannel.open(imageFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int listSectors = sectors(2 + packCount * 12);
+            ByteBuffer list = ByteBuffer.allocate(listSectors * Constants.SECTOR_SIZE);
+            list.putShort((short) packCount);
+            long start = listSectors;
+            for (int p=0; p<packCount; p++) {
+                int size = writePack(channel, Constants.PACKS_LIST_SECTOR + start, p, random);
+                list.putInt((int) start).putInt(size).putShort((short) 0).putShort((short) 44100);
+                start += size;
+            }
+            write(channel, Constants.PACKS_LIST_SECTOR, list);
+        }
+    }
+
+    private int writePack(FileChannel channel, long packSector, int p, Random random) throws IOException {
+        int images = Math.max(1, Math.min(imageCount, optionCount));
+        int sounds = Math.max(2, soundCount);
+        int nodeCount = getNodeCount();
+        int imageSectors = sectors(imageSize);
+        int soundSectors = sectors(soundSize);
+
+        // Header, without thumbnail
+        ByteBuffer header = ByteBuffer.allocate(Constants.SECTOR_SIZE);
+        header.putShort((short) nodeCount).put((byte) 0).putShort((short) 1);
+        // Title, UTF-16 at offset 64; thumbnail size (offset 448) stays 0
+        header.position(64);
+        for (char c : ("Synthetic pack " + p).toCharArray()) {
+            header.putChar(c);
+        }
+        int headerSectors = BinaryEnrichedMetadataReader.getHeaderSectors(0);
+        write(channel, packSector, header);
+
+        // Action nodes, after the stage nodes: menu options, then one single-option list per story
+        int menuList = nodeCount;
+        int menuListSectors = sectors(optionCount * 2);
+        int storyLists = menuList + menuListSectors;
+        ByteBuffer actions = ByteBuffer.allocate((menuListSectors + optionCount) * Constants.SECTOR_SIZE);
+        for (int i=0; i<optionCount; i++) {
+            actions.putShort((short) (1 + i));
+        }
+        for (int i=0; i<optionCount; i++) {
+            actions.putShort((menuListSectors + i) * Constants.SECTOR_SIZE, (short) (1 + optionCount + i));
+        }
+        write(channel, packSector + headerSectors + menuList, actions);
+
+        // Assets, after the action nodes
+        int firstImage = headerSectors + storyLists + optionCount;
+        int firstSound = firstImage + images * imageSectors;
+        for (int i=0; i<images; i++) {
+            write(channel, packSector + firstImage + (long) i * imageSectors, ByteBuffer.wrap(randomBytes(random, imageSectors)));
+        }
+        for (int i=0; i<sounds; i++) {
+            write(channel, packSector + firstSound + (long) i * soundSectors, ByteBuffer.wrap(randomBytes(random, soundSectors)));
+        }
+        int size = firstSound + sounds * soundSectors + 1;
+
+        // Stage nodes, one sector each
+        ByteBuffer nodes = ByteBuffer.allocate(nodeCount * Constants.SECTOR_SIZE);
+        UUID packUuid = new UUID(random.nextLong(), random.nextLong());
+        putNode(nodes, 0, packUuid, -1, 0, firstSound, soundSectors, menuList, optionCount, 0, -1, 0, -1,
+                true, true, false, false, false);
+        for (int i=0; i<optionCount; i++) {
+            putNode(nodes, 1 + i, new UUID(random.nextLong(), random.nextLong()),
+                    firstImage + (i % images) * imageSectors, imageSectors,
+                    firstSound + (1 + i % (sounds - 1)) * soundSectors, soundSectors,
+                    storyLists + i, 1, 0, menuList, optionCount, i, true, true, true, false, false);
+        }
+        for (int i=0; i<optionCount; i++) {
+            putNode(nodes, 1 + optionCount + i, new UUID(random.nextLong(), random.nextLong()), -1, 0,
+                    firstSound + (1 + i % (sounds - 1)) * soundSectors, soundSectors,
+                    menuList, optionCount, i, menuList, optionCount, 0, false, true, true, true, true);
+        }
+        write(channel, packSector + headerSectors, nodes);
+
+        write(channel, packSector + size - 1, ByteBuffer.wrap(Constants.CHECK_BYTES));
+        return size;
+    }
+
+    private static void putNode(ByteBuffer nodes, int index, UUID uuid, int imageSector, int imageSectors, int soundSector, int soundSectors,
+                                int okSector, int okCount, int okIndex, int homeSector, int homeCount, int homeIndex,
+                                boolean wheel, boolean ok, boolean home, boolean pause, boolean autoJump) {
+        nodes.position(index * Constants.SECTOR_SIZE);
+        nodes.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits())
+                .putInt(imageSector).putInt(imageSectors).putInt(soundSector).putInt(soundSectors)
+                .putShort((short) okSector).putShort((short) okCount).putShort((short) okIndex)
+                .putShort((short) homeSector).putShort((short) homeCount).putShort((short) homeIndex)
+                .putShort((short) (wheel ? 1 : 0)).putShort((short) (ok ? 1 : 0)).putShort((short) (home ? 1 : 0))
+                .putShort((short) (pause ? 1 : 0)).putShort((short) (autoJump ? 1 : 0));
+    }
+
+    private static void write(FileChannel channel, long sector, ByteBuffer bb) throws IOException {
+        bb.rewind();
+        long position = sector * Constants.SECTOR_SIZE;
+        while (bb.hasRemaining()) {
+            position += channel.write(bb, position);
+        }
+    }
+
+    private static int sectors(int bytes) {
+        return (bytes + Constants.SECTOR_SIZE - 1) / Constants.SECTOR_SIZE;
+    }
+
+    private static byte[] randomBytes(Random random, int sectors) {
+        byte[] data = new byte[sectors * Constants.SECTOR_SIZE];
+        random.nextBytes(data);
+        return data;
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Usage: SyntheticRawImageGenerator <image file> [pack count] [node count]
+        if (args.length < 1) {
+            System.err.println("Usage: SyntheticRawImageGenerator <image file> [pack count] [node count]");
+            System.exit(1);
+        }
+        SyntheticRawImageGenerator generator = new SyntheticRawImageGenerator();
+        if (args.length > 1) {
+            generator.packCount(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2) {
+            generator.nodeCount(Integer.parseInt(args[2]));
+        }
+        generator.write(new File(args[0]).toPath());
+    }
+}
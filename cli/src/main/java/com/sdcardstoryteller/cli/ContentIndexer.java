@@ -0,0 +1,257 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.sdcardstoryteller.cli;
+
+import com.sdcardstoryteller.FsStoryPackReader;
+import com.sdcardstoryteller.model.CompactStoryPack;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless indexer and validator of a '.content' folder: every pack is parsed in parallel, its
+ * graph is built the way the app builds it (so that packs the app rejects are invalid here too),
+ * every 'ri'/'si' entry is checked against the 'rf/'/'sf/' files, and per-pack stats are printed
+ * as JSON.
+ * Exits with status 1 when at least one pack is invalid.
+ */
+public class ContentIndexer {
+
+    public static class PackReport {
+
+        private final String folder;
+        private String uuid;
+        private short version;
+        private boolean nightModeAvailable;
+        private boolean cleartext;
+        private int nodeCount;
+        private int imageCount;
+        private int soundCount;
+        private long imageBytes;
+        private long soundBytes;
+        private long parseNanos;
+        private long checkNanos;
+        private final List<String> missingAssets = new ArrayList<>();
+        private String error;
+
+        public PackReport(String folder) {
+            this.folder = folder;
+        }
+
+        public String getFolder() {
+            return folder;
+        }
+
+        public List<String> getMissingAssets() {
+            return missingAssets;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean isValid() {
+            return error == null && missingAssets.isEmpty();
+        }
+
+        public long getAssetBytes() {
+            return imageBytes + soundBytes;
+        }
+
+        public long getParseNanos() {
+            return parseNanos;
+        }
+    }
+
+    // Lazy images: building the graph doesn't read any asset, action nodes are all built (and checked)
+    private final FsStoryPackReader reader = new FsStoryPackReader(true);
+    private final int threads;
+
+    public ContentIndexer(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public List<PackReport> index(File contentFolder) throws IOException {
+        File[] folders = contentFolder.listFiles(File::isDirectory);
+        if (folders == null) {
+            throw new IOException("Cannot list " + contentFolder);
+        }
+        // Stable output whatever the listing order of the file system
+        Arrays.sort(folders);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<PackReport>> futures = new ArrayList<>(folders.length);
+            for (File folder : folders) {
+                futures.add(executor.submit(() -> indexPack(folder)));
+            }
+            List<PackReport> reports = new ArrayList<>(folders.length);
+            for (Future<PackReport> future : futures) {
+                try {
+                    reports.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while indexing " + contentFolder);
+                }
+            }
+            return reports;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public PackReport indexPack(File packFolder) {
+        PackReport report = new PackReport(packFolder.getName());
+        try {
+            long start = System.nanoTime();
+            CompactStoryPack pack = reader.readCompact(packFolder);
+            report.parseNanos = System.nanoTime() - start;
+            report.uuid = pack.getUuid();
+            report.version = pack.getVersion();
+            report.nightModeAvailable = pack.isNightModeAvailable();
+            report.cleartext = pack.isCleartext();
+            report.nodeCount = pack.getNodeCount();
+            report.imageCount = pack.getImagePaths().length;
+            report.soundCount = pack.getSoundPaths().length;
+
+            start = System.nanoTime();
+            // Node indices in 'ri', 'si' and 'li' are checked while the graph is built
+            reader.toStoryPack(pack, packFolder);
+            report.imageBytes = checkAssets(packFolder.toPath().resolve("rf"), pack.getImagePaths(), report);
+            report.soundBytes = checkAssets(packFolder.toPath().resolve("sf"), pack.getSoundPaths(), report);
+            report.checkNanos = System.nanoTime() - start;
+        } catch (IOException | RuntimeException e) {
+            report.error = e.toString();
+        }
+        return report;
+    }
+
+    private static long checkAssets(Path assetFolder, String[] paths, PackReport report) throws IOException {
+        // One attribute read per asset: existence, type and size at once
+        long bytes = 0;
+        for (String path : paths) {
+            Path file = assetFolder.resolve(path);
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    report.missingAssets.add(assetFolder.getFileName() + "/" + path);
+                } else {
+                    bytes += attributes.size();
+                }
+            } catch (NoSuchFileException e) {
+                report.missingAssets.add(assetFolder.getFileName() + "/" + path);
+            }
+        }
+        return bytes;
+    }
+
+    public static void writeJson(File contentFolder, List<PackReport> reports, long totalNanos, PrintWriter out) {
+        long nodes = 0;
+        long bytes = 0;
+        int invalid = 0;
+        out.println("{");
+        out.println("  \"content\": " + quote(contentFolder.getAbsolutePath()) + ",");
+        out.println("  \"packs\": [");
+        for (int i=0; i<reports.size(); i++) {
+            PackReport r = reports.get(i);
+            nodes += r.nodeCount;
+            bytes += r.getAssetBytes();
+            if (!r.isValid()) {
+                invalid++;
+            }
+            StringBuilder sb = new StringBuilder("    {\"folder\": ").append(quote(r.folder));
+            if (r.error != null) {
+                sb.append(", \"valid\": false, \"error\": ").append(quote(r.error));
+            } else {
+                sb.append(", \"uuid\": ").append(quote(r.uuid))
+                        .append(", \"version\": ").append(r.version)
+                        .append(", \"cleartext\": ").append(r.cleartext)
+                        .append(", \"nightMode\": ").append(r.nightModeAvailable)
+                        .append(", \"nodes\": ").append(r.nodeCount)
+                        .append(", \"images\": ").append(r.imageCount)
+                        .append(", \"sounds\": ").append(r.soundCount)
+                        .append(", \"imageBytes\": ").append(r.imageBytes)
+                        .append(", \"soundBytes\": ").append(r.soundBytes)
+                        .append(", \"parseMicros\": ").append(r.parseNanos / 1000)
+                        .append(", \"checkMicros\": ").append(r.checkNanos / 1000)
+                        .append(", \"valid\": ").append(r.isValid())
+                        .append(", \"missing\": [");
+                for (int j=0; j<r.missingAssets.size(); j++) {
+                    sb.append(j == 0 ? "" : ", ").append(quote(r.missingAssets.get(j)));
+                }
+                sb.append(']');
+            }
+            sb.append('}').append(i < reports.size() - 1 ? "," : "");
+            out.println(sb);
+        }
+        out.println("  ],");
+        double seconds = totalNanos / 1e9;
+        out.println("  \"totals\": {\"packs\": " + reports.size() + ", \"invalid\": " + invalid
+                + ", \"nodes\": " + nodes + ", \"assetBytes\": " + bytes
+                + ", \"millis\": " + totalNanos / 1000000
+                + ", \"packsPerSecond\": " + (seconds > 0 ? Math.round(reports.size() / seconds) : 0) + "}");
+        out.println("}");
+        out.flush();
+    }
+
+    private static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Usage: storyteller-index <.content folder> [threads]
+        if (args.length < 1) {
+            System.err.println("Usage: storyteller-index <.content folder> [threads]");
+            System.exit(2);
+        }
+        File contentFolder = new File(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        List<PackReport> reports = new ContentIndexer(threads).index(contentFolder);
+        long totalNanos = System.nanoTime() - start;
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        writeJson(contentFolder, reports, totalNanos, out);
+        for (PackReport report : reports) {
+            if (!report.isValid()) {
+                System.exit(1);
+            }
+        }
+    }
+}